@@ -0,0 +1,311 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.news;
+
+import android.util.Log;
+
+import org.npr.android.util.DiskLruCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A disk cache of on-demand audio files, filled in as StreamProxy streams
+ * them. Files are cached piecemeal: each entry records which byte ranges of
+ * the file have been downloaded, so that a seek can be served from disk when
+ * the bytes are there and only the missing ranges need to be fetched.
+ * <p>
+ * Each entry is two files in a {@link DiskLruCache}: a small properties file
+ * with the length, content type and downloaded ranges, and a data file of
+ * the full length with the downloaded ranges filled in.
+ */
+public class AudioCache {
+  private static final String LOG_TAG = AudioCache.class.getName();
+
+  public static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+
+  private static final String META_SUFFIX = ".0";
+  private static final String DATA_SUFFIX = ".1";
+
+  private static final String META_LENGTH = "length";
+  private static final String META_CONTENT_TYPE = "contentType";
+  private static final String META_RANGES = "ranges";
+
+  private static AudioCache instance;
+
+  private final DiskLruCache store;
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+  private AudioCache(File directory, long maxSize) {
+    store = new DiskLruCache(directory, maxSize);
+  }
+
+  public static synchronized void createInstance(File directory,
+      long maxSize) {
+    if (instance == null) {
+      instance = new AudioCache(directory, maxSize);
+    }
+  }
+
+  /**
+   * @return The cache, or null if none has been created
+   */
+  public static synchronized AudioCache instance() {
+    return instance;
+  }
+
+  /**
+   * @return The entry for a URL, which is empty if nothing has been cached
+   *         for it yet. Entries are shared by everyone streaming the URL, and
+   *         are kept from being evicted until each has called
+   *         {@link Entry#close()}.
+   */
+  public synchronized Entry open(String url) {
+    String name = DiskLruCache.hashKey(url);
+    Entry entry = entries.get(name);
+    if (entry != null && entry.opens == 0 && entry.hasRanges() &&
+        !entry.getDataFile().exists()) {
+      // The data has been evicted since we last looked.
+      entry.clear();
+    }
+    if (entry == null) {
+      entry = new Entry(name);
+      entry.load();
+      entries.put(name, entry);
+    }
+    if (entry.opens++ == 0) {
+      store.pin(name + META_SUFFIX);
+      store.pin(name + DATA_SUFFIX);
+    }
+    return entry;
+  }
+
+  private synchronized void close(Entry entry) {
+    if (--entry.opens == 0) {
+      store.unpin(entry.name + META_SUFFIX);
+      store.unpin(entry.name + DATA_SUFFIX);
+    }
+  }
+
+  /**
+   * The cached state of one URL. Ranges are half open, [start, end), and are
+   * kept sorted and disjoint.
+   */
+  public class Entry {
+    private final String name;
+    private long length = -1;
+    private String contentType;
+    private final List<long[]> ranges = new ArrayList<long[]>();
+    // How many are streaming the URL. Guarded by the cache.
+    private int opens = 0;
+
+    private Entry(String name) {
+      this.name = name;
+    }
+
+    /**
+     * @return The length of the file, or -1 if it is not yet known
+     */
+    public synchronized long getLength() {
+      return length;
+    }
+
+    public synchronized String getContentType() {
+      return contentType;
+    }
+
+    /**
+     * Records the length and type of the file, as learned from the server.
+     * If the length differs from what we had, the file has changed and
+     * anything cached for it is discarded.
+     */
+    public synchronized void setInfo(long length, String contentType) {
+      if (this.length != length) {
+        ranges.clear();
+        getDataFile().delete();
+      }
+      this.length = length;
+      this.contentType = contentType;
+    }
+
+    /**
+     * @return Whether the file is known to fit in the cache. Larger files
+     *         would evict themselves, so they are not cached.
+     */
+    public synchronized boolean isCacheable() {
+      return length >= 0 && length <= store.getMaxSize();
+    }
+
+    /**
+     * Says that the caller has finished with the entry, which may then be
+     * evicted.
+     */
+    public void close() {
+      AudioCache.this.close(this);
+    }
+
+    private synchronized boolean hasRanges() {
+      return !ranges.isEmpty();
+    }
+
+    public File getDataFile() {
+      return store.getFile(name + DATA_SUFFIX);
+    }
+
+    /**
+     * @return The end of the cached range containing the position, or the
+     *         position itself if it is not cached
+     */
+    public synchronized long getCachedEnd(long position) {
+      for (long[] range : ranges) {
+        if (range[0] <= position && position < range[1]) {
+          return range[1];
+        }
+      }
+      return position;
+    }
+
+    /**
+     * @return The start of the first cached range after the position, or the
+     *         length of the file if there is none
+     */
+    public synchronized long getNextCachedStart(long position) {
+      for (long[] range : ranges) {
+        if (range[0] > position) {
+          return range[0];
+        }
+      }
+      return length;
+    }
+
+    /**
+     * Marks bytes as written to the data file.
+     */
+    public synchronized void addRange(long start, long end) {
+      if (end <= start) {
+        return;
+      }
+      int i = 0;
+      // Skip ranges that end before this one starts.
+      while (i < ranges.size() && ranges.get(i)[1] < start) {
+        i++;
+      }
+      // Swallow ranges that overlap or touch this one.
+      while (i < ranges.size() && ranges.get(i)[0] <= end) {
+        long[] range = ranges.remove(i);
+        start = Math.min(start, range[0]);
+        end = Math.max(end, range[1]);
+      }
+      ranges.add(i, new long[] { start, end });
+    }
+
+    /**
+     * Writes out the entry's state and accounts for the size of its data.
+     */
+    public void save() {
+      Properties meta = new Properties();
+      synchronized (this) {
+        if (length < 0) {
+          return;
+        }
+        meta.setProperty(META_LENGTH, Long.toString(length));
+        if (contentType != null) {
+          meta.setProperty(META_CONTENT_TYPE, contentType);
+        }
+        StringBuilder r = new StringBuilder();
+        for (long[] range : ranges) {
+          if (r.length() > 0) {
+            r.append(',');
+          }
+          r.append(range[0]).append('-').append(range[1]);
+        }
+        meta.setProperty(META_RANGES, r.toString());
+      }
+      File temp = store.newTempFile();
+      OutputStream out = null;
+      try {
+        out = new FileOutputStream(temp);
+        meta.store(out, null);
+        out.close();
+        out = null;
+        store.commit(name + META_SUFFIX, temp);
+      } catch (IOException e) {
+        Log.e(LOG_TAG, "", e);
+        temp.delete();
+      } finally {
+        if (out != null) {
+          try {
+            out.close();
+          } catch (IOException e) {
+            // Ignore
+          }
+        }
+      }
+      store.update(name + DATA_SUFFIX);
+    }
+
+    private synchronized void clear() {
+      length = -1;
+      contentType = null;
+      ranges.clear();
+      store.remove(name + META_SUFFIX);
+    }
+
+    private synchronized void load() {
+      File file = store.get(name + META_SUFFIX);
+      if (file == null || !getDataFile().exists()) {
+        return;
+      }
+      InputStream in = null;
+      try {
+        in = new FileInputStream(file);
+        Properties meta = new Properties();
+        meta.load(in);
+        length = Long.parseLong(meta.getProperty(META_LENGTH, "-1"));
+        contentType = meta.getProperty(META_CONTENT_TYPE);
+        for (String range : meta.getProperty(META_RANGES, "").split(",")) {
+          int dash = range.indexOf('-');
+          if (dash > 0) {
+            addRange(Long.parseLong(range.substring(0, dash)),
+                Long.parseLong(range.substring(dash + 1)));
+          }
+        }
+      } catch (IOException e) {
+        Log.e(LOG_TAG, "", e);
+        clear();
+      } catch (NumberFormatException e) {
+        Log.e(LOG_TAG, "", e);
+        clear();
+      } finally {
+        if (in != null) {
+          try {
+            in.close();
+          } catch (IOException e) {
+            // Ignore
+          }
+        }
+      }
+    }
+  }
+}
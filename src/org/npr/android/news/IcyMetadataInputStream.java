@@ -0,0 +1,184 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.news;
+
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Strips the metadata blocks that Shoutcast and Icecast servers interleave
+ * with the audio when asked for them with "Icy-MetaData: 1". The server says
+ * how many audio bytes come between blocks in its icy-metaint header; each
+ * block is a length byte, counting 16-byte units, followed by text such as
+ * "StreamTitle='Artist - Song';".
+ * <p>
+ * Audio is read straight into the caller's buffer; reads are only cut short
+ * at block boundaries, so stripping costs no extra copy.
+ */
+public class IcyMetadataInputStream extends FilterInputStream {
+  private static final String LOG_TAG =
+      IcyMetadataInputStream.class.getName();
+  private static final String STREAM_TITLE = "StreamTitle='";
+  private static final String METADATA_CHARSET = "UTF-8";
+
+  /**
+   * Receives stream titles as they arrive.
+   */
+  public interface TitleListener {
+    /**
+     * Called on the reading thread when the title differs from the last one.
+     */
+    public void onTitle(String title);
+  }
+
+  private final int metaInterval;
+  private final TitleListener listener;
+  // At most 255 * 16 bytes, read once per block.
+  private final byte[] metadata = new byte[255 * 16];
+  private int audioRemaining;
+  private String title;
+
+  /**
+   * @param in The stream, positioned at the start of the audio
+   * @param metaInterval The value of the icy-metaint header
+   * @param listener Notified of title changes; may be null
+   */
+  public IcyMetadataInputStream(InputStream in, int metaInterval,
+      TitleListener listener) {
+    super(in);
+    this.metaInterval = metaInterval;
+    this.listener = listener;
+    audioRemaining = metaInterval;
+  }
+
+  /**
+   * @return The current stream title, or null if none has been sent
+   */
+  public String getTitle() {
+    return title;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (audioRemaining == 0 && !readMetadata()) {
+      return -1;
+    }
+    int b = in.read();
+    if (b != -1) {
+      audioRemaining--;
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int count) throws IOException {
+    if (audioRemaining == 0 && !readMetadata()) {
+      return -1;
+    }
+    int read = in.read(buffer, offset, Math.min(count, audioRemaining));
+    if (read > 0) {
+      audioRemaining -= read;
+    }
+    return read;
+  }
+
+  @Override
+  public long skip(long count) throws IOException {
+    if (audioRemaining == 0 && !readMetadata()) {
+      return 0;
+    }
+    long skipped = in.skip(Math.min(count, audioRemaining));
+    audioRemaining -= skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return Math.min(in.available(), audioRemaining);
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  /**
+   * Consumes a metadata block.
+   *
+   * @return false if the stream ended
+   */
+  private boolean readMetadata() throws IOException {
+    int units = in.read();
+    if (units == -1) {
+      return false;
+    }
+    int length = units * 16;
+    int read = 0;
+    while (read < length) {
+      int n = in.read(metadata, read, length - read);
+      if (n == -1) {
+        return false;
+      }
+      read += n;
+    }
+    audioRemaining = metaInterval;
+    if (length > 0) {
+      String newTitle = parseTitle(metadata, length);
+      if (newTitle != null && !newTitle.equals(title)) {
+        title = newTitle;
+        Log.d(LOG_TAG, "Stream title: " + title);
+        if (listener != null) {
+          listener.onTitle(title);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return The StreamTitle from a metadata block, or null if it has none
+   */
+  static String parseTitle(byte[] block, int length) {
+    // Blocks are padded out with nulls.
+    while (length > 0 && block[length - 1] == 0) {
+      length--;
+    }
+    String text;
+    try {
+      text = new String(block, 0, length, METADATA_CHARSET);
+    } catch (UnsupportedEncodingException e) {
+      Log.e(LOG_TAG, "", e);
+      return null;
+    }
+    int start = text.indexOf(STREAM_TITLE);
+    if (start < 0) {
+      return null;
+    }
+    start += STREAM_TITLE.length();
+    // Titles may themselves contain quotes, so look for the closing "';".
+    int end = text.indexOf("';", start);
+    if (end < 0) {
+      end = text.lastIndexOf('\'');
+      if (end < start) {
+        end = text.length();
+      }
+    }
+    return text.substring(start, end).trim();
+  }
+}
@@ -0,0 +1,294 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.news;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import org.npr.android.util.DiskLruCache;
+import org.npr.android.util.LruCache;
+import org.npr.api.HttpTransport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads images for display. Decoded bitmaps are kept in memory, bounded by
+ * their size in bytes, and downloaded files are kept on disk. Images are
+ * decoded no larger than needed for the view they are going into, so a
+ * full-size photo never has to fit in memory just to be shown as an icon.
+ * <p>
+ * Requests return a Future; cancel it (for example from onDestroy) and the
+ * callback will not be made.
+ */
+public class ImageLoader {
+  private static final String LOG_TAG = ImageLoader.class.getName();
+
+  private static final int THREADS = 2;
+  private static final long DISK_CACHE_SIZE = 4 * 1024 * 1024;
+
+  private static ImageLoader instance;
+
+  /**
+   * Receives a loaded image on the UI thread.
+   */
+  public interface Callback {
+    /**
+     * @param url The URL that was requested
+     * @param bitmap The image, or null if it could not be loaded
+     */
+    public void onImageLoaded(String url, Bitmap bitmap);
+  }
+
+  private final LruCache<String, Bitmap> memoryCache;
+  private final DiskLruCache diskCache;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private final ExecutorService executor =
+      Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+          Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+              r.run();
+            }
+          }, "ImageLoader");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private ImageLoader(File directory) {
+    long maxMemory = Runtime.getRuntime().maxMemory();
+    memoryCache = new LruCache<String, Bitmap>(
+        (int) Math.min(maxMemory / 8, Integer.MAX_VALUE)) {
+      @Override
+      protected int sizeOf(String key, Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+      }
+    };
+    diskCache = new DiskLruCache(directory, DISK_CACHE_SIZE);
+  }
+
+  public static synchronized ImageLoader instance(Context context) {
+    if (instance == null) {
+      instance = new ImageLoader(new File(
+          context.getApplicationContext().getCacheDir(), "images"));
+    }
+    return instance;
+  }
+
+  /**
+   * Loads an image scaled down to fit within, but not much beyond, the
+   * given size.
+   *
+   * @param url The image URL
+   * @param width The width of the view the image is for, in pixels
+   * @param height The height of the view the image is for, in pixels
+   * @param callback Called on the UI thread with the result, unless the
+   *          request is cancelled first
+   * @return A future that may be used to cancel the request
+   */
+  public Future<?> load(final String url, final int width, final int height,
+      final Callback callback) {
+    final String key = url + "@" + width + "x" + height;
+    Bitmap cached = memoryCache.get(key);
+    if (cached != null) {
+      callback.onImageLoaded(url, cached);
+      return new CompletedFuture();
+    }
+    LoadTask task = new LoadTask(url, key, width, height, callback);
+    executor.execute(task);
+    return task;
+  }
+
+  private class LoadTask extends FutureTask<Bitmap> {
+    private final String url;
+    private final Callback callback;
+
+    private LoadTask(final String url, final String key, final int width,
+        final int height, Callback callback) {
+      super(new Callable<Bitmap>() {
+        @Override
+        public Bitmap call() {
+          Bitmap bitmap = loadBitmap(url, width, height);
+          if (bitmap != null) {
+            memoryCache.put(key, bitmap);
+          }
+          return bitmap;
+        }
+      });
+      this.url = url;
+      this.callback = callback;
+    }
+
+    @Override
+    protected void done() {
+      if (isCancelled()) {
+        return;
+      }
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          // Cancellation happens on this thread too, so this check is final.
+          if (isCancelled()) {
+            return;
+          }
+          Bitmap bitmap = null;
+          try {
+            bitmap = get();
+          } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "", e);
+          } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "", e);
+          }
+          callback.onImageLoaded(url, bitmap);
+        }
+      });
+    }
+  }
+
+  private Bitmap loadBitmap(String url, int width, int height) {
+    String name = DiskLruCache.hashKey(url);
+    File file = diskCache.get(name);
+    if (file == null) {
+      file = download(url, name);
+      if (file == null) {
+        return null;
+      }
+    }
+
+    long start = System.currentTimeMillis();
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeFile(file.getPath(), options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      Log.w(LOG_TAG, "Could not decode " + url);
+      diskCache.remove(name);
+      return null;
+    }
+    int sampleSize = getSampleSize(options.outWidth, options.outHeight,
+        width, height);
+    options = new BitmapFactory.Options();
+    options.inSampleSize = sampleSize;
+    Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+    if (bitmap != null) {
+      Log.d(LOG_TAG, "Decoded " + url + " at 1/" + sampleSize + " to " +
+          bitmap.getWidth() + "x" + bitmap.getHeight() + " (" +
+          bitmap.getRowBytes() * bitmap.getHeight() + " bytes) in " +
+          (System.currentTimeMillis() - start) + "ms");
+    }
+    return bitmap;
+  }
+
+  /**
+   * @return The largest power of two by which the image can be scaled down
+   *         while still covering the target size
+   */
+  static int getSampleSize(int imageWidth, int imageHeight, int width,
+      int height) {
+    int sampleSize = 1;
+    if (width <= 0 || height <= 0) {
+      return sampleSize;
+    }
+    while (imageWidth / (sampleSize * 2) >= width &&
+        imageHeight / (sampleSize * 2) >= height) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  private File download(String url, String name) {
+    InputStream data = HttpTransport.open(url);
+    if (data == null) {
+      return null;
+    }
+    File temp = diskCache.newTempFile();
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(temp);
+      byte[] buffer = new byte[8 * 1024];
+      int read;
+      while ((read = data.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      out.close();
+      out = null;
+      if (diskCache.commit(name, temp)) {
+        return diskCache.get(name);
+      }
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "error downloading", e);
+    } finally {
+      HttpTransport.close(data);
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          // Ignore
+        }
+      }
+      temp.delete();
+    }
+    return null;
+  }
+
+  /**
+   * Returned for requests satisfied straight from memory.
+   */
+  private static class CompletedFuture implements Future<Object> {
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    public Object get() {
+      return null;
+    }
+
+    @Override
+    public Object get(long timeout, TimeUnit unit) {
+      return null;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return true;
+    }
+  }
+}
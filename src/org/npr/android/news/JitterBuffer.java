@@ -0,0 +1,274 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.news;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A memory buffer between a network stream and the player it feeds, which
+ * absorbs stalls on the network so the player does not see them.
+ * <p>
+ * The reader is held back at the start until the buffer has filled to its
+ * target level (the high watermark), so the player begins with a cushion.
+ * If the buffer runs dry the reader is held back again, but only until the
+ * low watermark, a quarter of the target, so that it gets audio in bursts
+ * rather than a trickle without being starved for long. Meanwhile the
+ * network is read as fast as it delivers, however slowly the player reads,
+ * until the buffer is full.
+ * <p>
+ * The target adapts to the network: it is the time the player can be
+ * covered for, from a few seconds when data arrives steadily, up to the
+ * maximum when the throughput varies a lot. See {@link Target}.
+ */
+public class JitterBuffer {
+  private static final String LOG_TAG = JitterBuffer.class.getName();
+
+  private final byte[] ring;
+  private final Target target;
+  private long readPosition = 0;
+  private long writePosition = 0;
+  private boolean isBuffering = true;
+  private boolean isStarted = false;
+  private boolean isClosed = false;
+  private int underruns = 0;
+
+  /**
+   * @param capacity The most bytes held at once
+   * @param target The target level, shared with whatever measures the
+   *          stream
+   */
+  public JitterBuffer(int capacity, Target target) {
+    ring = new byte[capacity];
+    this.target = target;
+  }
+
+  public Target getTarget() {
+    return target;
+  }
+
+  /**
+   * @return The number of bytes waiting to be read
+   */
+  public synchronized int getLevel() {
+    return (int) (writePosition - readPosition);
+  }
+
+  /**
+   * @return The number of times the reader found the buffer empty
+   */
+  public synchronized int getUnderruns() {
+    return underruns;
+  }
+
+  /**
+   * Adds bytes, waiting for room if the buffer is full.
+   *
+   * @throws InterruptedException If interrupted while waiting
+   */
+  public synchronized void write(byte[] buffer, int offset, int count)
+      throws InterruptedException {
+    target.onArrival(count);
+    while (count > 0 && !isClosed) {
+      if (getLevel() == ring.length) {
+        updateBuffering();
+        notifyAll();
+        while (getLevel() == ring.length && !isClosed) {
+          wait();
+        }
+        continue;
+      }
+      int index = (int) (writePosition % ring.length);
+      int n = Math.min(count, Math.min(ring.length - index,
+          ring.length - getLevel()));
+      System.arraycopy(buffer, offset, ring, index, n);
+      offset += n;
+      count -= n;
+      writePosition += n;
+    }
+    updateBuffering();
+    notifyAll();
+  }
+
+  private void updateBuffering() {
+    if (isBuffering && getLevel() >= getResumeLevel()) {
+      isBuffering = false;
+      isStarted = true;
+    }
+  }
+
+  /**
+   * @return The level at which a held back reader is let go
+   */
+  private int getResumeLevel() {
+    int level = target.getBytes();
+    if (isStarted) {
+      level /= 4;
+    }
+    return Math.min(level, ring.length);
+  }
+
+  /**
+   * Takes as many bytes as there is room for in a buffer, waiting for the
+   * jitter buffer to fill to its target first if it is buffering.
+   *
+   * @return The number of bytes read, or -1 if the buffer was closed and
+   *         has been drained
+   * @throws InterruptedException If interrupted while waiting
+   */
+  public synchronized int read(ByteBuffer buffer)
+      throws InterruptedException {
+    while ((isBuffering || getLevel() == 0) && !isClosed) {
+      wait();
+    }
+    int level = getLevel();
+    if (level == 0) {
+      return -1;
+    }
+    int index = (int) (readPosition % ring.length);
+    int n = Math.min(buffer.remaining(), Math.min(ring.length - index,
+        level));
+    buffer.put(ring, index, n);
+    readPosition += n;
+    if (getLevel() == 0 && !isClosed) {
+      underruns++;
+      isBuffering = true;
+      Log.d(LOG_TAG, "Underrun " + underruns + "; refilling to " +
+          getResumeLevel() + " bytes");
+    }
+    notifyAll();
+    return n;
+  }
+
+  /**
+   * Ends the stream. The reader gets what is left without waiting for the
+   * target, then end of stream.
+   */
+  public synchronized void close() {
+    isClosed = true;
+    notifyAll();
+  }
+
+  /**
+   * Works out how much to buffer from how steadily a stream arrives.
+   * Throughput is sampled once a second, and smoothed averages kept of the
+   * rate and of how far each sample strays from it. The target covers a
+   * minimum time plus a multiple of the relative deviation, so a network
+   * that stalls gets a deeper buffer, and a steady one a shallower buffer
+   * and less delay.
+   */
+  public static class Target {
+    private static final int SAMPLE_MILLIS = 1000;
+    // How much to cover for each unit of relative deviation.
+    private static final int DEVIATION_MILLIS = 4000;
+    // Assumed until the rate has been measured: 128kbps.
+    private static final int DEFAULT_BYTE_RATE = 128 * 1000 / 8;
+    // Most samples accounted for after a gap, so a long pause does not take
+    // forever to work through.
+    private static final int MAX_GAP_SAMPLES = 30;
+
+    private final int minMillis;
+    private final int maxMillis;
+    private long sampleStart = 0;
+    private long sampleBytes = 0;
+    private double meanRate = 0;
+    private double deviation = 0;
+    private int samples = 0;
+    private int byteRate = 0;
+
+    /**
+     * @param minMillis The pre-roll, and the least the target will be
+     * @param maxMillis The most the target will be
+     */
+    public Target(int minMillis, int maxMillis) {
+      this.minMillis = minMillis;
+      this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Sets the rate the server says the stream runs at. This is used in
+     * preference to the measured rate, which is skewed by bursts.
+     */
+    public synchronized void setByteRate(int byteRate) {
+      this.byteRate = byteRate;
+    }
+
+    /**
+     * Records the arrival of bytes from the network.
+     */
+    public synchronized void onArrival(int count) {
+      long now = System.currentTimeMillis();
+      if (sampleStart == 0) {
+        sampleStart = now;
+      }
+      int elapsed = (int) Math.min((now - sampleStart) / SAMPLE_MILLIS,
+          MAX_GAP_SAMPLES);
+      if (elapsed > 0) {
+        // The first sample takes the bytes; any others passed with nothing.
+        addSample(sampleBytes * 1000.0 / SAMPLE_MILLIS);
+        for (int i = 1; i < elapsed; i++) {
+          addSample(0);
+        }
+        sampleStart = now;
+        sampleBytes = 0;
+      }
+      sampleBytes += count;
+    }
+
+    private void addSample(double rate) {
+      if (samples == 0) {
+        meanRate = rate;
+        deviation = rate / 2;
+      } else {
+        deviation += (Math.abs(rate - meanRate) - deviation) / 4;
+        meanRate += (rate - meanRate) / 8;
+      }
+      samples++;
+    }
+
+    /**
+     * @return The stream's rate in bytes per second: as advertised, else as
+     *         measured, else a typical rate
+     */
+    public synchronized int getByteRate() {
+      if (byteRate > 0) {
+        return byteRate;
+      }
+      if (samples >= 2 && meanRate > 0) {
+        return (int) meanRate;
+      }
+      return DEFAULT_BYTE_RATE;
+    }
+
+    /**
+     * @return How much playing time to hold, in milliseconds
+     */
+    public synchronized int getMillis() {
+      if (samples < 2 || meanRate <= 0) {
+        return minMillis;
+      }
+      double millis = minMillis + DEVIATION_MILLIS * deviation / meanRate;
+      return (int) Math.min(maxMillis, millis);
+    }
+
+    /**
+     * @return How many bytes to hold
+     */
+    public int getBytes() {
+      return (int) ((long) getMillis() * getByteRate() / 1000);
+    }
+  }
+}
@@ -14,11 +14,9 @@
 
 package org.npr.android.news;
 
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.IBinder;
 import android.util.Log;
@@ -38,10 +36,9 @@ import android.widget.SlidingDrawer.OnDrawerOpenListener;
 
 import org.npr.android.util.PlaylistEntry;
 
-import java.io.IOException;
-
 public class ListenView extends FrameLayout implements OnClickListener,
-    OnSeekBarChangeListener, OnDrawerOpenListener, OnDrawerCloseListener {
+    OnSeekBarChangeListener, OnDrawerOpenListener, OnDrawerCloseListener,
+    PlaybackService.PlaybackListener {
 
   private static final String LOG_TAG = ListenView.class.getName();
 
@@ -53,10 +50,6 @@ public class ListenView extends FrameLayout implements OnClickListener,
   private SlidingDrawer drawer;
   private boolean playButtonisPause = false;
 
-  private BroadcastReceiver changeReceiver = new PlaybackChangeReceiver();
-  private BroadcastReceiver updateReceiver = new PlaybackUpdateReceiver();
-  private BroadcastReceiver closeReceiver = new PlaybackCloseReceiver();
-
   private ServiceConnection conn;
   private PlaybackService player;
   
@@ -98,6 +91,7 @@ public class ListenView extends FrameLayout implements OnClickListener,
       @Override
       public void onServiceConnected(ComponentName name, IBinder service) {
         player = ((PlaybackService.ListenBinder) service).getService();
+        player.addPlaybackListener(ListenView.this);
       }
 
       @Override
@@ -111,13 +105,6 @@ public class ListenView extends FrameLayout implements OnClickListener,
     // causes an implicit service stop when the last binder is removed.
     getContext().getApplicationContext().startService(serviceIntent);
     getContext().getApplicationContext().bindService(serviceIntent, conn, 0);
-
-    getContext().registerReceiver(changeReceiver,
-        new IntentFilter(PlaybackService.SERVICE_CHANGE_NAME));
-    getContext().registerReceiver(updateReceiver,
-        new IntentFilter(PlaybackService.SERVICE_UPDATE_NAME));
-    getContext().registerReceiver(closeReceiver,
-        new IntentFilter(PlaybackService.SERVICE_CLOSE_NAME));
   }
 
   @Override
@@ -130,9 +117,10 @@ public class ListenView extends FrameLayout implements OnClickListener,
   protected void onDetachedFromWindow() {
     super.onDetachedFromWindow();
     Log.d(LOG_TAG, "detached from window");
-    getContext().unregisterReceiver(changeReceiver);
-    getContext().unregisterReceiver(updateReceiver);
-    getContext().unregisterReceiver(closeReceiver);
+    if (player != null) {
+      player.removePlaybackListener(this);
+      player = null;
+    }
     getContext().getApplicationContext().unbindService(conn);
   }
 
@@ -172,55 +160,34 @@ public class ListenView extends FrameLayout implements OnClickListener,
 
   protected void listen(PlaylistEntry entry) {
     if (player != null) {
-      try {
-        player.setCurrent(entry);
-        player.listen(entry.url, entry.isStream);
-      } catch (IllegalArgumentException e) {
-        Log.e(LOG_TAG, "", e);
-      } catch (IllegalStateException e) {
-        Log.e(LOG_TAG, "", e);
-      } catch (IOException e) {
-        Log.e(LOG_TAG, "", e);
-      }
-    }
-  }
-
-  private class PlaybackChangeReceiver extends BroadcastReceiver {
-    @Override
-    public void onReceive(Context context, Intent intent) {
-      String title = intent.getStringExtra(PlaybackService.EXTRA_TITLE);
-      infoText.setText(title);
+      player.setCurrent(entry);
+      player.listen(entry.url, entry.isStream);
     }
   }
 
-  private class PlaybackUpdateReceiver extends BroadcastReceiver {
-    @Override
-    public void onReceive(Context context, Intent intent) {
-      int duration = intent.getIntExtra(PlaybackService.EXTRA_DURATION, 1);
-      int position = intent.getIntExtra(PlaybackService.EXTRA_POSITION, 0);
-      int downloaded = intent.getIntExtra(PlaybackService.EXTRA_DOWNLOADED, 1);
-      if (!playButtonisPause && player != null && player.isPlaying()) {
-        playButton.setImageResource(android.R.drawable.ic_media_pause);
-        playButtonisPause = true;
-      }
-      playButton.setEnabled(true);
-      progressBar.setEnabled(true);
-      progressBar.setMax(duration);
-      progressBar.setProgress(position);
-      progressBar.setSecondaryProgress(downloaded);
-    }
-  }
-  
-  private class PlaybackCloseReceiver extends BroadcastReceiver {
-    @Override
-    public void onReceive(Context context, Intent intent) {
+  @Override
+  public void onPlaybackStateChanged(PlaybackState state) {
+    if (!state.isActive) {
       playButton.setEnabled(false);
       playButton.setImageResource(android.R.drawable.ic_media_play);
+      playButtonisPause = false;
       progressBar.setEnabled(false);
       progressBar.setProgress(0);
       progressBar.setSecondaryProgress(0);
       infoText.setText(null);
+      return;
+    }
+    infoText.setText(state.title);
+    if (state.isPlaying != playButtonisPause) {
+      playButton.setImageResource(state.isPlaying ?
+          android.R.drawable.ic_media_pause : android.R.drawable.ic_media_play);
+      playButtonisPause = state.isPlaying;
     }
+    playButton.setEnabled(true);
+    progressBar.setEnabled(true);
+    progressBar.setMax(state.duration);
+    progressBar.setProgress(state.position);
+    progressBar.setSecondaryProgress(state.downloaded);
   }
 
   @Override
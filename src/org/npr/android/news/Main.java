@@ -40,10 +40,12 @@ import org.npr.android.util.FileUtils;
 import org.npr.android.util.Tracker;
 import org.npr.android.util.Tracker.ActivityMeasurement;
 import org.npr.api.ApiConstants;
+import org.npr.api.HttpCache;
 import org.npr.api.Podcast;
 import org.npr.api.Podcast.Item;
 import org.npr.api.Podcast.PodcastFactory;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -103,6 +105,8 @@ public class Main extends PlayerActivity implements OnItemClickListener {
 
     lauchLocationListeners();
     initApiKey();
+    HttpCache.createInstance(new File(getCacheDir(), "http"),
+        HttpCache.DEFAULT_MAX_SIZE);
 
     ViewGroup container = (ViewGroup) findViewById(R.id.Content);
     ViewGroup.inflate(this, R.layout.main_inner, container);
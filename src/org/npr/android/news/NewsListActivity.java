@@ -16,12 +16,17 @@ package org.npr.android.news;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.ListView;
+import android.widget.Toast;
 import android.widget.AdapterView.OnItemClickListener;
 
+import org.npr.android.util.PlaylistEntry;
+import org.npr.android.util.PlaylistProvider;
 import org.npr.android.util.Tracker;
 import org.npr.android.util.Tracker.StoryListMeasurement;
 import org.npr.api.ApiConstants;
@@ -42,27 +47,23 @@ public class NewsListActivity extends PlayerActivity implements
 
   protected NewsListAdapter listAdapter;
 
-  private static Map<String, Story> storyCache = new HashMap<String, Story>();
-
-  public static Story getStoryFromCache(String storyId) {
-    Story result = storyCache.get(storyId);
-    if (result == null) {
-      result = Story.StoryFactory.downloadStory(storyId);
-      storyCache.put(storyId, result);
-    }
-    return result;
-  }
+  // Clear of the ids PlayerActivity uses for its menu items.
+  private static final int MENU_ENQUEUE_ALL = 100;
 
   public static void addAllToStoryCache(List<Story> stories) {
-    for (Story story : stories) {
-      storyCache.put(story.getId(), story);
-    }
+    StoryCache.instance().putAll(stories);
   }
 
   @Override
   public void onLowMemory() {
     super.onLowMemory();
-    storyCache.clear();
+    StoryCache.instance().trim(StoryCache.TRIM_MEMORY_COMPLETE);
+  }
+
+  // Called by Android 4.0 and later; not an override in the SDK we build
+  // against.
+  public void onTrimMemory(int level) {
+    StoryCache.instance().trim(level);
   }
 
   @Override
@@ -95,6 +96,7 @@ public class NewsListActivity extends PlayerActivity implements
     if (s == null) {
       addStories();
     } else {
+      prefetchNeighbours(parent, position);
       Intent i = new Intent(this, NewsStoryActivity.class);
       i.putExtra(Constants.EXTRA_STORY_ID, s.getId());
       i.putExtra(Constants.EXTRA_DESCRIPTION, description);
@@ -102,6 +104,22 @@ public class NewsListActivity extends PlayerActivity implements
     }
   }
 
+  /**
+   * Warms the story cache with the stories either side of the one opened,
+   * since those are the likeliest to be opened next.
+   */
+  private void prefetchNeighbours(AdapterView<?> parent, int position) {
+    int[] neighbours = { position + 1, position - 1 };
+    for (int neighbour : neighbours) {
+      if (neighbour >= 0 && neighbour < parent.getCount()) {
+        Story s = (Story) parent.getItemAtPosition(neighbour);
+        if (s != null) {
+          StoryCache.instance().prefetch(s.getId());
+        }
+      }
+    }
+  }
+
   private void addStories() {
     Map<String, String> params = new HashMap<String, String>();
     params.put("startNum", "" + listAdapter.getCount());
@@ -110,6 +128,50 @@ public class NewsListActivity extends PlayerActivity implements
         params), initialSize);    
   }
 
+  @Override
+  public boolean onCreateOptionsMenu(Menu menu) {
+    menu.add(Menu.NONE, MENU_ENQUEUE_ALL, Menu.NONE, R.string.msg_enqueue_all)
+        .setIcon(android.R.drawable.ic_menu_add);
+    return super.onCreateOptionsMenu(menu);
+  }
+
+  @Override
+  public boolean onOptionsItemSelected(MenuItem item) {
+    if (item.getItemId() == MENU_ENQUEUE_ALL) {
+      enqueueAll();
+      return true;
+    }
+    return super.onOptionsItemSelected(item);
+  }
+
+  /**
+   * Adds every story in the list that has audio to the end of the playlist,
+   * in one go, off the UI thread.
+   */
+  private void enqueueAll() {
+    final List<PlaylistEntry> entries = listAdapter.getPlayableEntries();
+    if (entries.isEmpty()) {
+      Toast.makeText(this, R.string.msg_enqueue_none, Toast.LENGTH_SHORT)
+          .show();
+      return;
+    }
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        final int added = PlaylistProvider.enqueue(getContentResolver(),
+            entries);
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            Toast.makeText(NewsListActivity.this,
+                getString(R.string.msg_enqueued, added), Toast.LENGTH_SHORT)
+                .show();
+          }
+        });
+      }
+    }, "EnqueueAll").start();
+  }
+
   @Override
   public CharSequence getMainTitle() {
     return description;
@@ -26,20 +26,16 @@ import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import org.apache.http.client.ClientProtocolException;
+import org.npr.android.util.PlaylistEntry;
 import org.npr.android.util.TypefaceCache;
-import org.npr.api.Client;
 import org.npr.api.Story;
 import org.npr.api.Story.Audio;
 import org.npr.api.Story.StoryFactory;
-import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
+import org.npr.api.Story.StoryFactory.StoryListener;
 
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
-import javax.xml.parsers.ParserConfigurationException;
-
 
 public class NewsListAdapter extends ArrayAdapter<Story> {
   private static final String LOG_TAG = NewsListAdapter.class.getName();
@@ -55,37 +51,82 @@ public class NewsListAdapter extends ArrayAdapter<Story> {
     }
   }
 
-  private List<Story> moreStories;
+  private static final int MSG_STORIES = 0;
+  private static final int MSG_DONE = 1;
+  // Stories are handed to the UI thread a few at a time, so that rows appear
+  // while the rest of the list is still downloading without posting a
+  // message (and a relayout) per story.
+  private static final int BATCH_SIZE = 3;
+
   private boolean endReached = false;
-  
+
   private Handler handler = new Handler() {
     @Override
     public void handleMessage(Message msg) {
-      if (moreStories != null) {
-        remove(null);
-        for (Story s : moreStories) {
-          if (getPosition(s) < 0) {
-            add(s);
+      switch (msg.what) {
+        case MSG_STORIES:
+          @SuppressWarnings("unchecked")
+          List<Story> batch = (List<Story>) msg.obj;
+          setNotifyOnChange(false);
+          remove(null);
+          for (Story s : batch) {
+            if (getPosition(s) < 0) {
+              add(s);
+            }
           }
-        }
-        if (!endReached) {
-          add(null);          
-        }
+          notifyDataSetChanged();
+          NewsListActivity.addAllToStoryCache(batch);
+          break;
+        case MSG_DONE:
+          if (msg.arg1 != 0) {
+            endReached = true;
+          }
+          setNotifyOnChange(false);
+          remove(null);
+          if (!endReached) {
+            add(null);
+          }
+          notifyDataSetChanged();
+          break;
       }
     }
   };
 
   private boolean isPlayable(Story story) {
+    return getPlayableUrl(story) != null;
+  }
+
+  /**
+   * @return The URL of the story's primary audio, or null if it has none
+   */
+  private static String getPlayableUrl(Story story) {
     for (Audio a : story.getAudios()) {
       if (a.getType().equals("primary")) {
         for (Audio.Format f : a.getFormats()) {
           if (f.getMp3() != null) {
-            return true;
+            return f.getMp3();
           }
         }
       }
     }
-    return false;
+    return null;
+  }
+
+  /**
+   * @return Playlist entries for the stories in the list that have audio,
+   *         in list order
+   */
+  public List<PlaylistEntry> getPlayableEntries() {
+    List<PlaylistEntry> entries = new ArrayList<PlaylistEntry>();
+    for (int i = 0; i < getCount(); i++) {
+      Story story = getItem(i);
+      String url = story == null ? null : getPlayableUrl(story);
+      if (url != null) {
+        entries.add(new PlaylistEntry(-1, url, story.getTitle(), false, -1,
+            story.getId()));
+      }
+    }
+    return entries;
   }
 
   @Override
@@ -133,37 +174,43 @@ public class NewsListAdapter extends ArrayAdapter<Story> {
       @Override
       public void run() {
         getMoreStories(url, count);
-        handler.sendEmptyMessage(0);
       }
     }).start();
   }
-  
-  private void getMoreStories(String url, int count) {
-    Node stories = null;
-    try {
-      stories = new Client(url).execute();
-    } catch (ClientProtocolException e) {
-      Log.e(LOG_TAG, "", e);
-    } catch (IOException e) {
-      Log.e(LOG_TAG, "", e);
-    } catch (SAXException e) {
-      Log.e(LOG_TAG, "", e);
-    } catch (ParserConfigurationException e) {
-      Log.e(LOG_TAG, "", e);
-    }
 
-    if (stories == null) {
-      Log.d(LOG_TAG, "stories: none");
-    } else {
-      Log.d(LOG_TAG, "stories: " + stories.getNodeName());
+  /**
+   * Collects parsed stories into small batches and posts each batch to the
+   * UI thread.
+   */
+  private class BatchingListener implements StoryListener {
+    private List<Story> batch = new ArrayList<Story>(BATCH_SIZE);
+    private boolean first = true;
 
-      moreStories = StoryFactory.parseStories(stories);
-      if (moreStories != null) {
-        if (moreStories.size() < count) {
-          endReached = true;
-        }
-        NewsListActivity.addAllToStoryCache(moreStories);
+    @Override
+    public void onStory(Story story) {
+      batch.add(story);
+      // The first story goes out on its own to get a row up as early as
+      // possible.
+      if (first || batch.size() >= BATCH_SIZE) {
+        first = false;
+        flush();
       }
     }
+
+    public void flush() {
+      if (batch.size() > 0) {
+        handler.obtainMessage(MSG_STORIES, batch).sendToTarget();
+        batch = new ArrayList<Story>(BATCH_SIZE);
+      }
+    }
+  }
+
+  private void getMoreStories(String url, int count) {
+    BatchingListener listener = new BatchingListener();
+    int received = StoryFactory.downloadStories(url, listener);
+    listener.flush();
+    Log.d(LOG_TAG, "stories: " + received);
+    boolean end = received >= 0 && received < count;
+    handler.obtainMessage(MSG_DONE, end ? 1 : 0, 0).sendToTarget();
   }
 }
@@ -15,7 +15,7 @@
 package org.npr.android.news;
 
 import android.content.Intent;
-import android.graphics.drawable.Drawable;
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -28,8 +28,10 @@ import android.widget.Button;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import org.npr.android.util.PlaylistEntry;
+import org.npr.android.util.PlaylistProvider;
 import org.npr.android.util.Tracker;
 import org.npr.android.util.TypefaceCache;
 import org.npr.android.util.Tracker.LinkEvent;
@@ -45,7 +47,9 @@ import org.npr.api.Story.TextWithHtml;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.concurrent.Future;
 
 public class NewsStoryActivity extends PlayerActivity implements
     OnClickListener {
@@ -57,14 +61,26 @@ public class NewsStoryActivity extends PlayerActivity implements
   private String topicId;
   private String orgId;
   private ImageView icon;
-  private Drawable iconDrawable;
+  private Future<?> iconRequest;
+  private static final int MSG_STORY = 0;
+  // The size of NewsStoryIcon in the layout.
+  private static final int ICON_SIZE_DIP = 100;
+
   private Handler handler = new Handler() {
     @Override
     public void handleMessage(Message msg) {
       switch (msg.what) {
-        case 0:
-          icon.setImageDrawable(iconDrawable);
-          icon.setVisibility(View.VISIBLE);
+        case MSG_STORY:
+          if (isFinishing()) {
+            break;
+          }
+          story = (Story) msg.obj;
+          if (story == null) {
+            TextView title = (TextView) findViewById(R.id.NewsStoryTitleText);
+            title.setText(R.string.msg_main_check_connection);
+          } else {
+            showStory();
+          }
           break;
       }
     }
@@ -75,15 +91,27 @@ public class NewsStoryActivity extends PlayerActivity implements
     description = getIntent().getStringExtra(Constants.EXTRA_DESCRIPTION);
     super.onCreate(savedInstanceState);
     storyId = getIntent().getStringExtra(Constants.EXTRA_STORY_ID);
-    story = NewsListActivity.getStoryFromCache(storyId);
-
-    if (story == null) {
-      return;
-    }
 
     ViewGroup container = (ViewGroup) findViewById(R.id.Content);
     ViewGroup.inflate(this, R.layout.news_story, container);
 
+    // Stories opened from a list are almost always in memory already; others
+    // (say, from the playback notification) are downloaded in the background
+    // while a placeholder is shown.
+    story = StoryCache.instance().peek(storyId);
+    if (story != null) {
+      showStory();
+    } else {
+      TextView title = (TextView) findViewById(R.id.NewsStoryTitleText);
+      title.setText(R.string.msg_loading);
+      findViewById(R.id.NewsStoryRow02).setVisibility(View.INVISIBLE);
+      findViewById(R.id.NewsStoryDateline).setVisibility(View.GONE);
+      StoryCache.instance().fetch(storyId, handler, MSG_STORY);
+    }
+  }
+
+  private void showStory() {
+    findViewById(R.id.NewsStoryRow02).setVisibility(View.VISIBLE);
     orgId =
         story.getOrganizations().size() > 0 ? story.getOrganizations().get(0)
             .getId() : null;
@@ -134,9 +162,8 @@ public class NewsStoryActivity extends PlayerActivity implements
         datelineText.append(", ");
       }
     }
-    if (datelineText.length() == 0) {
-      dateline.setVisibility(View.GONE);      
-    }
+    dateline.setVisibility(datelineText.length() == 0 ? View.GONE :
+        View.VISIBLE);
     dateline.setText(datelineText.toString());
 
     TextWithHtml text = story.getTextWithHtml();
@@ -159,16 +186,19 @@ public class NewsStoryActivity extends PlayerActivity implements
     textView.loadDataWithBaseURL(null, textHtml, "text/html", "utf-8", null);
 
     if (story.getImages().size() > 0) {
-      final String url = story.getImages().get(0).getSrc();
-      Thread imageInitThread = new Thread(new Runnable() {
-        public void run() {
-          iconDrawable = DownloadDrawable.createFromUrl(url);
-//          if (iconDrawable.getBounds().height() > 0) {
-            handler.sendEmptyMessage(0);
-//          }
-        }
-      });
-      imageInitThread.start();
+      String url = story.getImages().get(0).getSrc();
+      int size = (int) (ICON_SIZE_DIP *
+          getResources().getDisplayMetrics().density + 0.5f);
+      iconRequest = ImageLoader.instance(this).load(url, size, size,
+          new ImageLoader.Callback() {
+            @Override
+            public void onImageLoaded(String url, Bitmap bitmap) {
+              if (bitmap != null) {
+                icon.setImageBitmap(bitmap);
+                icon.setVisibility(View.VISIBLE);
+              }
+            }
+          });
     }
 
     listenNow.setOnClickListener(this);
@@ -181,6 +211,14 @@ public class NewsStoryActivity extends PlayerActivity implements
     enqueue.setEnabled(isListenable);
   }
 
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    if (iconRequest != null) {
+      iconRequest.cancel(true);
+    }
+  }
+
   @Override
   public void onClick(View v) {
     switch (v.getId()) {
@@ -212,12 +250,34 @@ public class NewsStoryActivity extends PlayerActivity implements
       this.listen(entry);
       e = new PlayNowEvent(storyId, story.getTitle(), a.getId());
     } else {
+      enqueue(entry);
       e = new PlayLaterEvent(storyId, story.getTitle(), a.getId());
     }
     
     Tracker.instance(getApplication()).trackLink(e);
   }
   
+  /**
+   * Adds a story to the end of the playlist, off the UI thread.
+   */
+  private void enqueue(final PlaylistEntry entry) {
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        final int added = PlaylistProvider.enqueue(getContentResolver(),
+            Collections.singletonList(entry));
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            Toast.makeText(NewsStoryActivity.this,
+                getString(R.string.msg_enqueued, added), Toast.LENGTH_SHORT)
+                .show();
+          }
+        });
+      }
+    }, "Enqueue").start();
+  }
+
   private Audio getPlayable() {
     for (Audio a : story.getAudios()) {
       if (a.getType().equals("primary")) {
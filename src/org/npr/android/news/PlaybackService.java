@@ -18,11 +18,8 @@ import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnBufferingUpdateListener;
@@ -30,75 +27,173 @@ import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
 import android.media.MediaPlayer.OnInfoListener;
 import android.media.MediaPlayer.OnPreparedListener;
-import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import org.npr.android.util.M3uParser;
 import org.npr.android.util.PlaylistEntry;
+import org.npr.android.util.PlaylistModel;
 import org.npr.android.util.PlaylistParser;
-import org.npr.android.util.PlaylistProvider;
 import org.npr.android.util.PlsParser;
-import org.npr.android.util.PlaylistProvider.Items;
+import org.npr.android.util.PositionPersister;
+import org.npr.api.HttpTransport;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Plays audio in the background. The players, the proxy and everything
+ * about the track are only touched on the service's own command thread:
+ * the public methods queue commands for it and return at once, and what
+ * they report comes from an immutable snapshot of the state that the
+ * command thread publishes, so callers on the UI thread never wait on a
+ * player or on the proxy shutting down.
+ */
 public class PlaybackService extends Service implements OnPreparedListener,
     OnBufferingUpdateListener, OnCompletionListener, OnErrorListener,
-    OnInfoListener {
+    OnInfoListener, StreamProxy.MetadataListener {
 
   private static final String LOG_TAG = PlaybackService.class.getName();
 
   private static final String SERVICE_PREFIX = "org.npr.android.news.";
   public static final String SERVICE_CHANGE_NAME = SERVICE_PREFIX + "CHANGE";
   public static final String SERVICE_CLOSE_NAME = SERVICE_PREFIX + "CLOSE";
-  public static final String SERVICE_UPDATE_NAME = SERVICE_PREFIX + "UPDATE";
   
   public static final String EXTRA_TITLE = "title";
-  public static final String EXTRA_DOWNLOADED = "downloaded";
-  public static final String EXTRA_DURATION = "duration";
-  public static final String EXTRA_POSITION = "position";
 
+  /**
+   * Receives playback state, on the UI thread. Listeners are told the state
+   * when they are added, and again whenever it changes on screen terms:
+   * play, pause, a new title, or the position moving on by a second.
+   */
+  public interface PlaybackListener {
+    public void onPlaybackStateChanged(PlaybackState state);
+  }
+
+  // Positions are shown to the second, so ticking faster would only repeat
+  // the same state.
+  private static final int PROGRESS_INTERVAL = 1000;
+
+  private static final int MSG_CREATE = 0;
+  private static final int MSG_RELEASE = 1;
+  private static final int MSG_PLAY = 2;
+  private static final int MSG_PAUSE = 3;
+  private static final int MSG_STOP = 4;
+  private static final int MSG_SEEK = 5;
+  private static final int MSG_LISTEN = 6;
+  private static final int MSG_SET_CURRENT = 7;
+  private static final int MSG_REWIND_LIVE = 8;
+  private static final int MSG_JUMP_TO_LIVE = 9;
+  private static final int MSG_STREAM_TITLE = 10;
+  private static final int MSG_TICK = 11;
+
+  private HandlerThread commandThread;
+  private Handler commands;
+
+  // Owned by the command thread, as are the players and the track state
+  // below, unless marked volatile.
   private MediaPlayer mediaPlayer;
   private boolean isPrepared = false;
 
-  private StreamProxy proxy;
+  // The next track, prepared while the current one plays so that it can
+  // start the moment the current one completes. The spare is a released
+  // player kept for reuse.
+  private MediaPlayer nextPlayer;
+  private MediaPlayer sparePlayer;
+  private PlaylistEntry nextEntry;
+  private String nextUrl;
+  private int nextResumePosition = 0;
+  private boolean isNextFromPlaylistUrls = false;
+  private boolean isNextPrepared = false;
+  // Set when the current track completed before the next was prepared.
+  private boolean isHandOffPending = false;
+  private long completedAt = 0;
+  private volatile long lastTrackGap = -1;
+
+  private volatile StreamProxy proxy;
+  // The live stream being recorded by the proxy, if any.
+  private volatile String liveUrl;
+  // What the notification and change broadcast last said.
+  private String nowPlaying;
   private NotificationManager notificationManager;
   private static final int NOTIFICATION_ID = 1;
-  private int bindCount = 0;
-  private PlaylistEntry current = null;
+  private volatile int bindCount = 0;
+  private volatile PlaylistEntry current = null;
+  // The rest of the playlist file being played. It is still being added to
+  // by a reader thread while the playlist downloads.
   private List<String> playlistUrls;
+  // The unread playlist items, kept in step with the database.
+  private PlaylistModel playlist;
+  // Where each file got to, by URL, written behind as it plays.
+  private PositionPersister positions;
+  // The file the player is playing, whose position is kept; null for
+  // streams.
+  private String playingUrl;
+  // Where to start the track being prepared, in milliseconds.
+  private int resumePosition = 0;
 
   private TelephonyManager telephonyManager;
   private PhoneStateListener listener;
   private boolean isPausedInCall = false;
   private Intent lastChangeBroadcast;
-  private Intent lastUpdateBroadcast;
   private int lastBufferPercent = 0;
-  private Thread updateProgressThread;
+
+  // The latest snapshot, replaced whole by the command thread and read from
+  // any thread. The command thread keeps the last one it sent to the UI, so
+  // that states which look the same on screen are not sent again.
+  private final AtomicReference<PlaybackState> state =
+      new AtomicReference<PlaybackState>(PlaybackState.IDLE);
+  private PlaybackState lastPublished = PlaybackState.IDLE;
+
+  // Listeners are added, removed and called on the UI thread. The progress
+  // tick only runs while there are listeners and something is playing.
+  private final Handler handler = new Handler();
+  private final List<PlaybackListener> playbackListeners =
+      new ArrayList<PlaybackListener>();
+  private volatile boolean hasListeners = false;
+  private PlaybackState lastState = PlaybackState.IDLE;
+  private final AtomicBoolean isDispatchPending = new AtomicBoolean();
+  private final Runnable dispatch = new Runnable() {
+    @Override
+    public void run() {
+      isDispatchPending.set(false);
+      dispatchState();
+    }
+  };
 
   // Amount of time to rewind playback when resuming after call 
   private final static int RESUME_REWIND_TIME = 3000;
 
   @Override
   public void onCreate() {
-    mediaPlayer = new MediaPlayer();
-    mediaPlayer.setOnBufferingUpdateListener(this);
-    mediaPlayer.setOnCompletionListener(this);
-    mediaPlayer.setOnErrorListener(this);
-    mediaPlayer.setOnInfoListener(this);
-    mediaPlayer.setOnPreparedListener(this);
+    commandThread = new HandlerThread("PlaybackCommands");
+    commandThread.start();
+    commands = new Handler(commandThread.getLooper()) {
+      @Override
+      public void handleMessage(Message msg) {
+        handleCommand(msg);
+      }
+    };
+    // MediaPlayer calls back on the looper of the thread that made it, so
+    // players are made on the command thread.
+    commands.sendEmptyMessage(MSG_CREATE);
+    AudioCache.createInstance(new File(getCacheDir(), "audio"),
+        AudioCache.DEFAULT_MAX_SIZE);
     notificationManager = (NotificationManager) getSystemService(
         Context.NOTIFICATION_SERVICE);
     Log.w(LOG_TAG, "Playback service created");
@@ -120,8 +215,12 @@ public class PlaybackService extends Service implements OnPreparedListener,
         case TelephonyManager.CALL_STATE_IDLE:
           // Phone idle. Rewind a couple of seconds and start playing.
           if (isPausedInCall) {
-            seekTo(Math.max(0, getPosition() - RESUME_REWIND_TIME));
-            play();
+            if (liveUrl != null) {
+              rewindLive(RESUME_REWIND_TIME);
+            } else {
+              seekTo(Math.max(0, getPosition() - RESUME_REWIND_TIME));
+              play();
+            }
           }
           break;
         }
@@ -132,6 +231,16 @@ public class PlaybackService extends Service implements OnPreparedListener,
     telephonyManager.listen(listener, PhoneStateListener.LISTEN_CALL_STATE);
   }
 
+  private MediaPlayer newPlayer() {
+    MediaPlayer player = new MediaPlayer();
+    player.setOnBufferingUpdateListener(this);
+    player.setOnCompletionListener(this);
+    player.setOnErrorListener(this);
+    player.setOnInfoListener(this);
+    player.setOnPreparedListener(this);
+    return player;
+  }
+
   @Override
   public IBinder onBind(Intent arg0) {
     bindCount++;
@@ -152,11 +261,72 @@ public class PlaybackService extends Service implements OnPreparedListener,
     return false;
   }
 
-  synchronized public boolean isPlaying() {
-    if (isPrepared) {
-      return mediaPlayer.isPlaying();
+  /**
+   * Runs a command on the command thread.
+   */
+  private void handleCommand(Message msg) {
+    switch (msg.what) {
+      case MSG_CREATE:
+        mediaPlayer = newPlayer();
+        playlist = new PlaylistModel(getContentResolver(), commands);
+        positions = new PositionPersister(getContentResolver(), commands);
+        break;
+      case MSG_RELEASE:
+        release();
+        break;
+      case MSG_PLAY:
+        handlePlay();
+        break;
+      case MSG_PAUSE:
+        handlePause();
+        break;
+      case MSG_STOP:
+        savePosition();
+        handleStop();
+        break;
+      case MSG_SEEK:
+        handleSeekTo(msg.arg1);
+        break;
+      case MSG_LISTEN:
+        try {
+          handleListen((String) msg.obj, msg.arg1 != 0);
+        } catch (IllegalArgumentException e) {
+          Log.e(LOG_TAG, "", e);
+        } catch (IllegalStateException e) {
+          Log.e(LOG_TAG, "", e);
+        } catch (IOException e) {
+          Log.e(LOG_TAG, "", e);
+        }
+        break;
+      case MSG_SET_CURRENT:
+        savePosition();
+        positions.flush();
+        current = (PlaylistEntry) msg.obj;
+        break;
+      case MSG_REWIND_LIVE:
+        handleRewindLive(msg.arg1);
+        break;
+      case MSG_JUMP_TO_LIVE:
+        if (getLiveSession() != null) {
+          playLive(0);
+        }
+        break;
+      case MSG_STREAM_TITLE:
+        String[] title = (String[]) msg.obj;
+        handleStreamTitle(title[0], title[1]);
+        break;
+      case MSG_TICK:
+        savePosition();
+        break;
     }
-    return false;
+    notifyStateChanged();
+  }
+
+  /**
+   * @return Whether the current track is playing, as of the last snapshot
+   */
+  public boolean isPlaying() {
+    return state.get().isPlaying;
   }
 
   public PlaylistEntry getCurrentEntry() {
@@ -165,47 +335,79 @@ public class PlaybackService extends Service implements OnPreparedListener,
   }
 
   public void setCurrent(PlaylistEntry c) {
-    current = c;
+    commands.sendMessage(commands.obtainMessage(MSG_SET_CURRENT, c));
   }
 
-  synchronized public int getPosition() {
-    if (isPrepared) {
-      return mediaPlayer.getCurrentPosition();
-    }
-    return 0;
+  /**
+   * @return Where playback has got to, in milliseconds, worked out from the
+   *         last snapshot
+   */
+  public int getPosition() {
+    return state.get().getPositionNow();
   }
 
-  synchronized public int getDuration() {
-    if (isPrepared) {
-      return mediaPlayer.getDuration();
-    }
-    return 0;
+  public int getDuration() {
+    return state.get().duration;
   }
 
-  synchronized public int getCurrentPosition() {
-    if (isPrepared) {
-      return mediaPlayer.getCurrentPosition();
-    }
-    return 0;
+  public int getCurrentPosition() {
+    return getPosition();
+  }
+
+  public void seekTo(int pos) {
+    commands.sendMessage(commands.obtainMessage(MSG_SEEK, pos, 0));
+  }
+
+  public void play() {
+    commands.sendEmptyMessage(MSG_PLAY);
+  }
+
+  public void pause() {
+    commands.sendEmptyMessage(MSG_PAUSE);
+  }
+
+  /**
+   * Stops playback. The proxy is shut down on the command thread, which may
+   * take a while, but this returns at once.
+   */
+  public void stop() {
+    commands.sendEmptyMessage(MSG_STOP);
   }
 
-  synchronized public void seekTo(int pos) {
+  private boolean isPlayerPlaying() {
+    return isPrepared && mediaPlayer.isPlaying();
+  }
+
+  private void handleSeekTo(int pos) {
     if (isPrepared) {
       mediaPlayer.seekTo(pos);
+      notifyStateChanged();
     }
   }
 
-  synchronized public void play() {
+  private void handlePlay() {
     if (!isPrepared || current == null) {
       Log.e(LOG_TAG, "play - not prepared");
       return;
     }
     Log.d(LOG_TAG, "play " + current.id);
     mediaPlayer.start();
-    markAsRead(current.id);
+    nowPlaying = null;
+    showNowPlaying(current.title);
+    notifyStateChanged();
+  }
 
+  /**
+   * Shows what is playing in the notification and the sticky change
+   * broadcast, unless that is what they already say.
+   */
+  private void showNowPlaying(String text) {
+    if (current == null || text.equals(nowPlaying)) {
+      return;
+    }
+    nowPlaying = text;
     int icon = R.drawable.stat_notify_musicplayer;
-    CharSequence contentText = current.title;
+    CharSequence contentText = text;
     long when = System.currentTimeMillis();
     Notification notification = new Notification(icon, contentText, when);
     notification.flags = Notification.FLAG_NO_CLEAR
@@ -235,117 +437,526 @@ public class PlaybackService extends Service implements OnPreparedListener,
       getApplicationContext().removeStickyBroadcast(lastChangeBroadcast);
     }
     lastChangeBroadcast = new Intent(SERVICE_CHANGE_NAME);
-    lastChangeBroadcast.putExtra(EXTRA_TITLE, current.title);
+    lastChangeBroadcast.putExtra(EXTRA_TITLE, text);
     getApplicationContext().sendStickyBroadcast(lastChangeBroadcast);
+    notifyStateChanged();
   }
 
-  synchronized public void pause() {
+  /**
+   * Adds a listener, and tells it the current state. Must be called on the
+   * UI thread.
+   */
+  public void addPlaybackListener(PlaybackListener listener) {
+    playbackListeners.add(listener);
+    hasListeners = true;
+    lastState = state.get();
+    listener.onPlaybackStateChanged(lastState);
+    // Gets the progress tick going, if something is playing.
+    commands.sendEmptyMessage(MSG_TICK);
+  }
+
+  /**
+   * Must be called on the UI thread.
+   */
+  public void removePlaybackListener(PlaybackListener listener) {
+    playbackListeners.remove(listener);
+    hasListeners = !playbackListeners.isEmpty();
+  }
+
+  /**
+   * @return A snapshot of what is playing, as last published by the command
+   *         thread. May be called on any thread.
+   */
+  public PlaybackState getState() {
+    return state.get();
+  }
+
+  /**
+   * @return A snapshot of the players as they are now. Command thread only.
+   */
+  private PlaybackState makeState() {
+    if (!isPrepared || current == null || mediaPlayer == null) {
+      return PlaybackState.IDLE;
+    }
+    int position = mediaPlayer.getCurrentPosition();
+    int duration = mediaPlayer.getDuration();
+    int downloaded = (int) ((lastBufferPercent / 100.0) * duration);
+    StreamProxy p = proxy;
+    if (liveUrl != null && p != null) {
+      // Streams have no end, so show how full the proxy's buffer is, out of
+      // the most it will hold.
+      duration = position + p.getMaxBufferedMillis();
+      downloaded = Math.min(duration, position + p.getBufferedMillis());
+    }
+    return new PlaybackState(nowPlaying != null ? nowPlaying : current.title,
+        true, mediaPlayer.isPlaying(), position, duration, downloaded,
+        SystemClock.elapsedRealtime());
+  }
+
+  /**
+   * Publishes a new snapshot, and has listeners told about it if it looks
+   * different. Changes that come in together are told once. Command thread
+   * only.
+   */
+  private void notifyStateChanged() {
+    PlaybackState newState = makeState();
+    state.set(newState);
+    if (!newState.looksLike(lastPublished)) {
+      lastPublished = newState;
+      if (isDispatchPending.compareAndSet(false, true)) {
+        handler.post(dispatch);
+      }
+    }
+    scheduleTick(newState);
+  }
+
+  private void dispatchState() {
+    PlaybackState newState = state.get();
+    if (playbackListeners.isEmpty() || newState.looksLike(lastState)) {
+      return;
+    }
+    lastState = newState;
+    PlaybackListener[] listeners = playbackListeners.toArray(
+        new PlaybackListener[playbackListeners.size()]);
+    for (PlaybackListener listener : listeners) {
+      listener.onPlaybackStateChanged(newState);
+    }
+  }
+
+  /**
+   * Starts or stops the progress tick, according to whether anyone would
+   * see it or the position needs saving. Command thread only.
+   */
+  private void scheduleTick(PlaybackState newState) {
+    boolean shouldTick = newState.isPlaying &&
+        (hasListeners || isKeepingPosition());
+    if (shouldTick && !commands.hasMessages(MSG_TICK)) {
+      // With no one watching, ticks only need to keep up with the saves.
+      commands.sendEmptyMessageDelayed(MSG_TICK, hasListeners ?
+          PROGRESS_INTERVAL : PositionPersister.FLUSH_INTERVAL);
+    } else if (!shouldTick) {
+      commands.removeMessages(MSG_TICK);
+    }
+  }
+
+  /**
+   * Called on a proxy thread; the title is passed to the command thread.
+   */
+  @Override
+  public void onStreamTitle(String url, String title) {
+    commands.sendMessage(commands.obtainMessage(MSG_STREAM_TITLE,
+        new String[] { url, title }));
+  }
+
+  private void handleStreamTitle(String url, String title) {
+    // Titles may still arrive from a stream we have moved on from.
+    if (current == null || !url.equals(liveUrl)) {
+      return;
+    }
+    showNowPlaying(title.length() == 0 ? current.title :
+        current.title + ": " + title);
+  }
+
+  /**
+   * @return Whether the current track is a file that can be resumed where it
+   *         was left. Command thread only.
+   */
+  private boolean isKeepingPosition() {
+    return playingUrl != null;
+  }
+
+  /**
+   * Notes where the current track has got to, to be written shortly.
+   * Command thread only.
+   */
+  private void savePosition() {
+    if (isPrepared && isKeepingPosition()) {
+      positions.save(playingUrl, mediaPlayer.getCurrentPosition());
+    }
+  }
+
+  private void handlePause() {
     Log.d(LOG_TAG, "pause");
     if (isPrepared) {
       mediaPlayer.pause();
     }
+    savePosition();
+    positions.flush();
     notificationManager.cancel(NOTIFICATION_ID);
+    notifyStateChanged();
   }
 
-  synchronized public void stop() {
+  private void handleStop() {
     Log.d(LOG_TAG, "stop");
+    discardNext();
     if (isPrepared) {
       if (proxy != null) {
         proxy.stop();
+        Log.d(LOG_TAG, "Proxy relayed " + proxy.getBytesRelayed() +
+            " bytes, " + proxy.getUnderruns() + " underruns, " +
+            proxy.getReconnects() + " reconnects");
         proxy = null;
       }
       mediaPlayer.stop();
       isPrepared = false;
+    } else if (proxy != null) {
+      proxy.closeLiveSession();
     }
+    liveUrl = null;
+    playingUrl = null;
+    positions.flush();
     cleanup();
   }
 
-  
   /**
-   * Start listening to the given URL.
+   * @return Whether the current stream is being recorded, so that it can be
+   *         rewound
+   */
+  public boolean isTimeshifted() {
+    return liveUrl != null;
+  }
+
+  /**
+   * Rewinds a live stream, as far as the recording of it allows, without
+   * dropping the connection to the station.
+   *
+   * @param ms How far back to go from what is playing now
+   */
+  public void rewindLive(int ms) {
+    commands.sendMessage(commands.obtainMessage(MSG_REWIND_LIVE, ms, 0));
+  }
+
+  private void handleRewindLive(int ms) {
+    StreamProxy.LiveSession session = getLiveSession();
+    if (session == null) {
+      return;
+    }
+    long behind = session.getBytesBehindLive() +
+        (long) ms * session.getByteRate() / 1000;
+    playLive(Math.min(behind, session.getBytesAvailable()));
+  }
+
+  /**
+   * Catches a rewound or paused live stream up to live.
    */
-  public void listen(String url, boolean stream)
+  public void jumpToLive() {
+    commands.sendEmptyMessage(MSG_JUMP_TO_LIVE);
+  }
+
+  /**
+   * @return How far playback is behind live, in milliseconds, or 0 if that
+   *         is not known
+   */
+  public int getLiveDelay() {
+    StreamProxy.LiveSession session = getLiveSession();
+    if (session == null || session.getByteRate() == 0) {
+      return 0;
+    }
+    return (int) (session.getBytesBehindLive() * 1000 / session.getByteRate());
+  }
+
+  private StreamProxy.LiveSession getLiveSession() {
+    StreamProxy p = proxy;
+    String url = liveUrl;
+    if (p == null || url == null) {
+      return null;
+    }
+    return p.getLiveSession(url);
+  }
+
+  /**
+   * Restarts the player on the recording of the current live stream. The
+   * proxy keeps recording throughout.
+   */
+  private void playLive(long bytesBehind) {
+    if (proxy == null || liveUrl == null) {
+      return;
+    }
+    String playUrl = String.format("http://127.0.0.1:%d/%s%d/%s",
+        proxy.getPort(), StreamProxy.LIVE_PREFIX, bytesBehind, liveUrl);
+    Log.d(LOG_TAG, "Timeshifting " + bytesBehind + " bytes: " + playUrl);
+    isPrepared = false;
+    try {
+      mediaPlayer.reset();
+      mediaPlayer.setDataSource(playUrl);
+      mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+      mediaPlayer.prepareAsync();
+    } catch (IllegalArgumentException e) {
+      Log.e(LOG_TAG, "", e);
+    } catch (IllegalStateException e) {
+      Log.e(LOG_TAG, "", e);
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "", e);
+    }
+  }
+
+  /**
+   * Start listening to the given URL. Playlist files are downloaded on the
+   * command thread; failures are logged.
+   */
+  public void listen(String url, boolean stream) {
+    commands.sendMessage(commands.obtainMessage(MSG_LISTEN, stream ? 1 : 0,
+        0, url));
+  }
+
+  private void handleListen(String url, boolean stream)
       throws IllegalArgumentException, IllegalStateException, IOException {
     // First, clean up any existing audio.
-    if (isPlaying()) {
-      stop();
+    if (isPlayerPlaying()) {
+      handleStop();
     }
 
     if (isPlaylist(url)) {
-      downloadPlaylist();
-      if (playlistUrls.size() > 0) {
-        url = playlistUrls.remove(0);
-      } else {
+      url = openPlaylist(url);
+      if (url == null) {
         return;
       }
     }
 
+    // A paused station is not stopped above, so its recording has to be.
+    if (proxy != null && (!stream || !url.equals(liveUrl))) {
+      proxy.closeLiveSession();
+    }
+
+    // Files pick up where they were left, however they were started again.
+    playingUrl = stream ? null : url;
+    resumePosition = stream ? 0 : positions.getPosition(url);
+
     Log.d(LOG_TAG, "listening to " + url + " stream=" + stream);
+    discardNext();
+    liveUrl = stream ? url : null;
+    String playUrl = getPlayUrl(url, stream);
+
+    Log.d(LOG_TAG, "reset: " + playUrl);
+    isPrepared = false;
+    mediaPlayer.reset();
+    mediaPlayer.setDataSource(playUrl);
+    mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+    Log.d(LOG_TAG, "Preparing: " + playUrl);
+    mediaPlayer.prepareAsync();
+    Log.d(LOG_TAG, "Waiting for prepare");
+  }
+
+  /**
+   * @return The URL for MediaPlayer to play a URL from, which is through the
+   *         proxy if it needs to be
+   */
+  private String getPlayUrl(String url, boolean stream) {
     String playUrl = url;
     // From 2.2 on (SDK ver 8), the local mediaplayer can handle Shoutcast
-    // streams natively. Let's detect that, and not proxy.
+    // streams natively, but we still proxy them so that they can be recorded
+    // for pausing and rewinding.
     Log.d(LOG_TAG, "SDK Version " + Build.VERSION.SDK);
-    int sdkVersion = 0;
-    try {
-      sdkVersion = Integer.parseInt(Build.VERSION.SDK);
-    } catch (NumberFormatException e) {
-    }
 
-    if (stream && sdkVersion < 8) {
+    // On-demand files go through the proxy too, so that they are cached on
+    // disk as they play and replays and seeks don't download them again.
+    boolean cache = !stream && AudioCache.instance() != null;
+    if (stream || cache) {
       if (proxy == null) {
         proxy = new StreamProxy();
+        proxy.setTimeshiftFile(new File(getCacheDir(), "timeshift"));
+        proxy.setMetadataListener(this);
         proxy.init();
         proxy.start();
       }
-      String proxyUrl = String.format("http://127.0.0.1:%d/%s",
-          proxy.getPort(), url);
+      String prefix = "";
+      if (stream) {
+        prefix = StreamProxy.LIVE_PREFIX + "0/";
+      } else if (cache) {
+        prefix = StreamProxy.CACHE_PREFIX;
+      }
+      String proxyUrl = String.format("http://127.0.0.1:%d/%s%s",
+          proxy.getPort(), prefix, url);
       playUrl = proxyUrl;
     }
+    return playUrl;
+  }
 
-    synchronized (this) {
-      Log.d(LOG_TAG, "reset: " + playUrl);
-      mediaPlayer.reset();
-      mediaPlayer.setDataSource(playUrl);
-      mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-      Log.d(LOG_TAG, "Preparing: " + playUrl);
-      mediaPlayer.prepareAsync();
-      Log.d(LOG_TAG, "Waiting for prepare");
+  /**
+   * Prepares the track after the current one in the spare player: the next
+   * URL of a multi-entry playlist, or else the next unread playlist item.
+   * Live streams have no next track, and playlist files are left to
+   * {@link #listen} since they have to be downloaded first.
+   */
+  private void prepareNext() {
+    if (nextPlayer != null || current == null || liveUrl != null) {
+      return;
+    }
+    PlaylistEntry entry;
+    String url;
+    boolean fromPlaylistUrls = playlistUrls != null &&
+        playlistUrls.size() > 0;
+    if (fromPlaylistUrls) {
+      entry = current;
+      url = playlistUrls.get(0);
+    } else {
+      entry = getNextPlaylistItem(current);
+      if (entry == null || entry.isStream || entry.url == null ||
+          entry.url.equals("") || isPlaylist(entry.url)) {
+        return;
+      }
+      url = entry.url;
+    }
+    MediaPlayer player = sparePlayer != null ? sparePlayer : newPlayer();
+    sparePlayer = null;
+    try {
+      player.setDataSource(getPlayUrl(url, false));
+      player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+      player.prepareAsync();
+    } catch (IllegalArgumentException e) {
+      Log.e(LOG_TAG, "", e);
+      player.reset();
+      sparePlayer = player;
+      return;
+    } catch (IllegalStateException e) {
+      Log.e(LOG_TAG, "", e);
+      player.reset();
+      sparePlayer = player;
+      return;
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "", e);
+      player.reset();
+      sparePlayer = player;
+      return;
+    }
+    Log.d(LOG_TAG, "Preparing next: " + url);
+    nextPlayer = player;
+    nextEntry = entry;
+    nextUrl = url;
+    nextResumePosition = positions.getPosition(url);
+    isNextFromPlaylistUrls = fromPlaylistUrls;
+    isNextPrepared = false;
+  }
+
+  /**
+   * Drops the prepared next track, keeping its player as the spare.
+   */
+  private void discardNext() {
+    if (nextPlayer != null) {
+      nextPlayer.reset();
+      sparePlayer = nextPlayer;
+      nextPlayer = null;
+    }
+    nextEntry = null;
+    nextUrl = null;
+    nextResumePosition = 0;
+    isNextPrepared = false;
+    isHandOffPending = false;
+  }
+
+  /**
+   * Moves on to the prepared next track, if it is still what comes next.
+   *
+   * @return false if there is no next track prepared
+   */
+  private boolean handOff() {
+    if (nextPlayer == null) {
+      return false;
+    }
+    if (isNextFromPlaylistUrls) {
+      if (playlistUrls == null || playlistUrls.size() == 0 ||
+          !playlistUrls.get(0).equals(nextUrl)) {
+        discardNext();
+        return false;
+      }
+      playlistUrls.remove(0);
+    } else {
+      // The playlist may have been changed since the track was prepared.
+      PlaylistEntry entry = getNextPlaylistItem(current);
+      if (entry == null || entry.id != nextEntry.id) {
+        discardNext();
+        return false;
+      }
     }
+    current = nextEntry;
+    if (isNextPrepared) {
+      startNext();
+    } else {
+      Log.d(LOG_TAG, "Next track not prepared yet");
+      isPrepared = false;
+      isHandOffPending = true;
+    }
+    return true;
+  }
+
+  /**
+   * Swaps in the prepared next player and starts it.
+   */
+  private void startNext() {
+    MediaPlayer finished = mediaPlayer;
+    mediaPlayer = nextPlayer;
+    nextPlayer = null;
+    isNextPrepared = false;
+    isHandOffPending = false;
+    nextEntry = null;
+    playingUrl = nextUrl;
+    nextUrl = null;
+    nextResumePosition = 0;
+    isPrepared = true;
+    lastBufferPercent = 0;
+    finished.reset();
+    sparePlayer = finished;
+    handlePlay();
+    reportGap();
+    prepareNext();
+  }
+
+  /**
+   * Logs how long there was between the last track completing and the
+   * current one starting.
+   */
+  private void reportGap() {
+    if (completedAt > 0) {
+      lastTrackGap = System.currentTimeMillis() - completedAt;
+      completedAt = 0;
+      Log.d(LOG_TAG, "Gap between tracks: " + lastTrackGap + "ms");
+    }
+  }
+
+  /**
+   * @return The time, in milliseconds, between the last track completing
+   *         and the next one starting, or -1 if no track has completed
+   */
+  public long getLastTrackGap() {
+    return lastTrackGap;
   }
 
   @Override
   public void onPrepared(MediaPlayer mp) {
-    Log.d(LOG_TAG, "Prepared");
-    synchronized (this) {
-      if (mediaPlayer != null) {
-        isPrepared = true;
+    if (mp == nextPlayer) {
+      Log.d(LOG_TAG, "Next track prepared");
+      isNextPrepared = true;
+      seekToResume(mp, nextResumePosition);
+      if (isHandOffPending) {
+        startNext();
       }
+      return;
+    }
+    Log.d(LOG_TAG, "Prepared");
+    if (mediaPlayer != null) {
+      isPrepared = true;
     }
-    play();
+    // MediaPlayer cannot seek until it is prepared, so the saved position
+    // is gone to here, before it starts.
+    seekToResume(mp, resumePosition);
+    resumePosition = 0;
+    handlePlay();
+    reportGap();
+    prepareNext();
     if (onPreparedListener != null) {
       onPreparedListener.onPrepared(mp);
     }
+  }
 
-    updateProgressThread = new Thread(new Runnable() {
-      public void run() {
-        // Initially, don't send any updates, since it takes a while for the
-        // media player to settle down. 
-        try {
-          Thread.sleep(2000);
-        } catch (InterruptedException e) {
-          return;
-        }
-        while (true) {
-          updateProgress();
-          try {
-            Thread.sleep(500);
-          } catch (InterruptedException e) {
-            break;
-          }
-        }
-      }
-    });
-    updateProgressThread.start();
+  /**
+   * Seeks a prepared player to a saved position, unless the position is at
+   * the start or past the end.
+   */
+  private void seekToResume(MediaPlayer mp, int position) {
+    if (position > 0 && position < mp.getDuration()) {
+      Log.d(LOG_TAG, "Resuming at " + position + "ms");
+      mp.seekTo(position);
+    }
   }
 
   @Override
@@ -353,26 +964,33 @@ public class PlaybackService extends Service implements OnPreparedListener,
     super.onDestroy();
     Log.w(LOG_TAG, "Service exiting");
 
-    if (updateProgressThread != null) {
-      updateProgressThread.interrupt();
-      try {
-        updateProgressThread.join(3000);
-      } catch (InterruptedException e) {
-        Log.e(LOG_TAG, "", e);
-      }
-    }
+    playbackListeners.clear();
+    hasListeners = false;
+    handler.removeCallbacks(dispatch);
 
-    stop();
-    synchronized (this) {
-      if (mediaPlayer != null) {
-        mediaPlayer.release();
-        mediaPlayer = null;
-      }
-    }
+    // Commands already queued are run first; the thread ends after the
+    // players are released.
+    commands.removeMessages(MSG_TICK);
+    commands.sendEmptyMessage(MSG_STOP);
+    commands.sendEmptyMessage(MSG_RELEASE);
 
     telephonyManager.listen(listener, PhoneStateListener.LISTEN_NONE);
   }
 
+  private void release() {
+    positions.flush();
+    playlist.close();
+    if (mediaPlayer != null) {
+      mediaPlayer.release();
+      mediaPlayer = null;
+    }
+    if (sparePlayer != null) {
+      sparePlayer.release();
+      sparePlayer = null;
+    }
+    Looper.myLooper().quit();
+  }
+
   public class ListenBinder extends Binder {
 
     public PlaybackService getService() {
@@ -382,44 +1000,43 @@ public class PlaybackService extends Service implements OnPreparedListener,
 
   @Override
   public void onBufferingUpdate(MediaPlayer mp, int progress) {
-    if (isPrepared) {
+    if (isPrepared && mp == mediaPlayer) {
       lastBufferPercent = progress;
-      updateProgress();
+      notifyStateChanged();
     }
   }
 
-  /**
-   * Sends an UPDATE broadcast with the latest info.
-   */
-  private void updateProgress() {
-    if (isPrepared && mediaPlayer != null && mediaPlayer.isPlaying()) {
-      // Update broadcasts are sticky, so when a new receiver connects, it will
-      // have the data without polling.
-      if (lastUpdateBroadcast != null) {
-        getApplicationContext().removeStickyBroadcast(lastUpdateBroadcast);
-      }
-      lastUpdateBroadcast = new Intent(SERVICE_UPDATE_NAME);
-      int position = mediaPlayer.getCurrentPosition();
-      int duration = mediaPlayer.getDuration();
-      lastUpdateBroadcast.putExtra(EXTRA_DURATION, mediaPlayer.getDuration());
-      lastUpdateBroadcast.putExtra(EXTRA_DOWNLOADED,
-          (int) ((lastBufferPercent / 100.0) * mediaPlayer.getDuration()));
-      lastUpdateBroadcast.putExtra(EXTRA_POSITION,
-          mediaPlayer.getCurrentPosition());
-      getApplicationContext().sendStickyBroadcast(lastUpdateBroadcast);
-    }
-  }
-  
   @Override
   public void onCompletion(MediaPlayer mp) {
+    if (mp != mediaPlayer) {
+      return;
+    }
     Log.w(LOG_TAG, "onComplete()");
+    completedAt = System.currentTimeMillis();
+    if (isPrepared) {
+      // Finished, so it starts from the beginning if played again. Items
+      // are only marked read now, so one left partly played stays in the
+      // playlist.
+      if (isKeepingPosition()) {
+        positions.save(playingUrl, 0);
+        positions.flush();
+      }
+      if (current != null) {
+        markAsRead(current.id);
+      }
+    }
 
-    synchronized (this) {
-      if (!isPrepared) {
-        // This file was not good and MediaPlayer quit
-        Log.w(LOG_TAG,
-            "MediaPlayer refused to play current item. Bailing on prepare.");
+    if (handOff()) {
+      if (onCompletionListener != null) {
+        onCompletionListener.onCompletion(mp);
       }
+      return;
+    }
+
+    if (!isPrepared) {
+      // This file was not good and MediaPlayer quit
+      Log.w(LOG_TAG,
+          "MediaPlayer refused to play current item. Bailing on prepare.");
     }
 
     cleanup();
@@ -432,7 +1049,7 @@ public class PlaybackService extends Service implements OnPreparedListener,
       // Unfinished playlist
       String url = playlistUrls.remove(0);
       try {
-        listen(url, current.isStream);
+        handleListen(url, current.isStream);
       } catch (IllegalArgumentException e) {
         Log.e(LOG_TAG, "", e);
       } catch (IllegalStateException e) {
@@ -444,7 +1061,7 @@ public class PlaybackService extends Service implements OnPreparedListener,
     }
 
     playNext();
-    if (bindCount == 0 && !isPlaying()) {
+    if (bindCount == 0 && !isPlayerPlaying()) {
       stopSelf();
     }
   }
@@ -452,13 +1069,33 @@ public class PlaybackService extends Service implements OnPreparedListener,
   @Override
   public boolean onError(MediaPlayer mp, int what, int extra) {
     Log.w(LOG_TAG, "onError(" + what + ", " + extra + ")");
-    synchronized (this) {
-      if (!isPrepared) {
-        // This file was not good and MediaPlayer quit
-        Log.w(LOG_TAG,
-            "MediaPlayer refused to play current item. Bailing on prepare.");
+    String url = null;
+    if (mp == nextPlayer) {
+      // If we were waiting for it, fall back to preparing it the slow way.
+      if (isHandOffPending) {
+        url = nextUrl;
+      }
+      discardNext();
+    }
+    if (url != null) {
+      try {
+        handleListen(url, false);
+      } catch (IllegalArgumentException e) {
+        Log.e(LOG_TAG, "", e);
+      } catch (IllegalStateException e) {
+        Log.e(LOG_TAG, "", e);
+      } catch (IOException e) {
+        Log.e(LOG_TAG, "", e);
       }
     }
+    if (mp != mediaPlayer) {
+      return true;
+    }
+    if (!isPrepared) {
+      // This file was not good and MediaPlayer quit
+      Log.w(LOG_TAG,
+          "MediaPlayer refused to play current item. Bailing on prepare.");
+    }
     return false;
   }
 
@@ -471,7 +1108,7 @@ public class PlaybackService extends Service implements OnPreparedListener,
   private void playNext() {
     Log.w(LOG_TAG, "Playing next track");
     if (current != null) {
-      PlaylistEntry entry = getNextPlaylistItem(current.order);
+      PlaylistEntry entry = getNextPlaylistItem(current);
       if (entry != null) {
         current = entry;
         String url = current.url;
@@ -480,7 +1117,7 @@ public class PlaybackService extends Service implements OnPreparedListener,
             Log.d(LOG_TAG, "no url");
             // Do nothing.
           } else {
-            listen(url, current.isStream);
+            handleListen(url, current.isStream);
           }
         } catch (IllegalArgumentException e) {
           Log.e(LOG_TAG, "", e);
@@ -499,96 +1136,95 @@ public class PlaybackService extends Service implements OnPreparedListener,
    * Remove all intents and notifications about the last media.
    */
   private void cleanup() {
+    nowPlaying = null;
     notificationManager.cancel(NOTIFICATION_ID);
     if (lastChangeBroadcast != null) {
       getApplicationContext().removeStickyBroadcast(lastChangeBroadcast);
     }
-    if (lastUpdateBroadcast != null) {
-      getApplicationContext().removeStickyBroadcast(lastUpdateBroadcast);
-    }
     getApplicationContext().sendBroadcast(new Intent(SERVICE_CLOSE_NAME));
+    notifyStateChanged();
   }
 
   private boolean isPlaylist(String url) {
     return url.indexOf("m3u") > -1 || url.indexOf("pls") > -1;
   }
 
-  private void downloadPlaylist() throws MalformedURLException, IOException {
-    String url = current.url;
-    Log.d(LOG_TAG, "downloading " + url);
-    URLConnection cn = new URL(url).openConnection();
-    cn.connect();
-    InputStream stream = cn.getInputStream();
-    if (stream == null) {
-      Log.e(LOG_TAG, "Unable to create InputStream for url: + url");
+  /**
+   * Starts on a playlist file, from the cache if it has been resolved
+   * lately. Otherwise it is downloaded, and its first URL returned as soon as
+   * it arrives; the rest are added to the playlist by a reader thread.
+   *
+   * @return The first URL to play, or null if the playlist has none
+   */
+  private String openPlaylist(final String url) throws IOException {
+    List<String> cached = PlaylistCache.instance().get(url);
+    if (cached != null) {
+      Log.d(LOG_TAG, "playlist cached " + url);
+      playlistUrls = new ArrayList<String>(cached);
+      return playlistUrls.remove(0);
     }
 
-    File downloadingMediaFile = new File(getCacheDir(), "playlist_data");
-    FileOutputStream out = new FileOutputStream(downloadingMediaFile);
-    byte buf[] = new byte[16384];
-    int totalBytesRead = 0, incrementalBytesRead = 0;
-    int numread;
-    while ((numread = stream.read(buf)) > 0) {
-      out.write(buf, 0, numread);
-      totalBytesRead += numread;
-      incrementalBytesRead += numread;
+    Log.d(LOG_TAG, "downloading " + url);
+    final InputStream stream = HttpTransport.open(url);
+    if (stream == null) {
+      Log.e(LOG_TAG, "Unable to create InputStream for url: " + url);
+      throw new IOException("Unable to download playlist " + url);
     }
-
-    stream.close();
-    out.close();
-    PlaylistParser parser;
+    final PlaylistParser parser;
     if (url.indexOf("m3u") > -1) {
-      parser = new M3uParser(downloadingMediaFile);
-    } else if (url.indexOf("pls") > -1) {
-      parser = new PlsParser(downloadingMediaFile);
+      parser = new M3uParser(stream);
     } else {
-      return;
+      parser = new PlsParser(stream);
+    }
+    final String first;
+    try {
+      first = parser.nextUrl();
+    } catch (IOException e) {
+      HttpTransport.close(stream);
+      throw e;
+    }
+    if (first == null) {
+      HttpTransport.close(stream);
+      playlistUrls = null;
+      return null;
     }
-    playlistUrls = parser.getUrls();
-  }
-
-  private PlaylistEntry retrievePlaylistItem(int current, boolean next) {
-    String selection = PlaylistProvider.Items.IS_READ + " = ?";
-    String[] selectionArgs = new String[1];
-    selectionArgs[0] = "0";
-    String sort = PlaylistProvider.Items.PLAY_ORDER + (next ? " asc" : " desc");
-    return retrievePlaylistItem(selection, selectionArgs, sort);
-  }
-
-  private PlaylistEntry getNextPlaylistItem(int current) {
-    return retrievePlaylistItem(current, true);
-  }
 
-  private PlaylistEntry retrievePlaylistItem(String selection,
-      String[] selectionArgs, String sort) {
-    Cursor cursor = getContentResolver().query(PlaylistProvider.CONTENT_URI,
-        null, selection, selectionArgs, sort);
-    return getFromCursor(cursor);
+    // Only ever appended to by the reader, and taken from by the command
+    // thread.
+    final List<String> rest =
+        Collections.synchronizedList(new ArrayList<String>());
+    playlistUrls = rest;
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        List<String> all = new ArrayList<String>();
+        all.add(first);
+        try {
+          String next;
+          while ((next = parser.nextUrl()) != null) {
+            all.add(next);
+            rest.add(next);
+          }
+          PlaylistCache.instance().put(url, all);
+        } catch (IOException e) {
+          Log.e(LOG_TAG, "", e);
+        } finally {
+          HttpTransport.close(stream);
+        }
+      }
+    }, "PlaylistReader").start();
+    return first;
   }
 
-  private PlaylistEntry getFromCursor(Cursor c) {
-    String title = null, url = null, storyID = null;
-    long id;
-    int order;
-    if (c.moveToFirst()) {
-      id = c.getInt(c.getColumnIndex(PlaylistProvider.Items._ID));
-      title = c.getString(c.getColumnIndex(PlaylistProvider.Items.NAME));
-      url = c.getString(c.getColumnIndex(PlaylistProvider.Items.URL));
-      order = c.getInt(c.getColumnIndex(PlaylistProvider.Items.PLAY_ORDER));
-      storyID = c.getString(c.getColumnIndex(PlaylistProvider.Items.STORY_ID));
-      c.close();
-      return new PlaylistEntry(id, url, title, false, order, storyID);
-    }
-    c.close();
-    return null;
+  /**
+   * @return The unread playlist entry after the given one, or null
+   */
+  private PlaylistEntry getNextPlaylistItem(PlaylistEntry entry) {
+    return playlist.getNext(entry);
   }
 
   private void markAsRead(long id) {
-    Uri update = ContentUris.withAppendedId(PlaylistProvider.CONTENT_URI, id);
-    ContentValues values = new ContentValues();
-    values.put(Items.IS_READ, true);
-    @SuppressWarnings("unused")
-    int result = getContentResolver().update(update, values, null, null);
+    playlist.markAsRead(id);
   }
 
   // -----------
@@ -0,0 +1,76 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.news;
+
+import android.os.SystemClock;
+
+/**
+ * What PlaybackService is doing at a moment, as pushed to its listeners.
+ * Snapshots never change once made, so they may be held on to, compared,
+ * and read from any thread. Times are in milliseconds.
+ */
+public class PlaybackState {
+  /**
+   * Nothing loaded.
+   */
+  public static final PlaybackState IDLE =
+      new PlaybackState(null, false, false, 0, 0, 0, 0);
+
+  public final String title;
+  // Whether there is a track loaded that can be played or paused.
+  public final boolean isActive;
+  public final boolean isPlaying;
+  public final int position;
+  public final int duration;
+  // How far playback could go without waiting for the network.
+  public final int downloaded;
+  // When the snapshot was made, by SystemClock.elapsedRealtime().
+  public final long time;
+
+  public PlaybackState(String title, boolean isActive, boolean isPlaying,
+      int position, int duration, int downloaded, long time) {
+    this.title = title;
+    this.isActive = isActive;
+    this.isPlaying = isPlaying;
+    this.position = position;
+    this.duration = duration;
+    this.downloaded = downloaded;
+    this.time = time;
+  }
+
+  /**
+   * @return The position by now, supposing playback has carried on since
+   *         the snapshot was made
+   */
+  public int getPositionNow() {
+    if (!isPlaying) {
+      return position;
+    }
+    long now = position + SystemClock.elapsedRealtime() - time;
+    return (int) (duration > 0 ? Math.min(now, duration) : now);
+  }
+
+  /**
+   * @return Whether the two would look the same on screen, where positions
+   *         are shown to the second
+   */
+  public boolean looksLike(PlaybackState other) {
+    return other != null && isActive == other.isActive &&
+        isPlaying == other.isPlaying && position / 1000 == other.position / 1000 &&
+        duration / 1000 == other.duration / 1000 &&
+        downloaded / 1000 == other.downloaded / 1000 &&
+        (title == null ? other.title == null : title.equals(other.title));
+  }
+}
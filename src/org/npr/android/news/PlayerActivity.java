@@ -62,6 +62,14 @@ public abstract class PlayerActivity extends ActivityGroup implements
             LayoutParams.WRAP_CONTENT));
   }
 
+  /**
+   * Updates the title bar, for activities whose title is not known until
+   * after they are created.
+   */
+  protected void refreshMainTitle() {
+    titleText.setText(getMainTitle());
+  }
+
   @Override
   public boolean isRefreshable() {
     return false;
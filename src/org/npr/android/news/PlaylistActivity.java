@@ -15,32 +15,142 @@
 package org.npr.android.news;
 
 import android.app.Activity;
-import android.content.Intent;
+import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
 import android.util.Log;
+import android.view.ContextMenu;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
+import android.view.ContextMenu.ContextMenuInfo;
 import android.view.View.OnClickListener;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
+import android.widget.BaseAdapter;
 import android.widget.Button;
 import android.widget.CompoundButton;
-import android.widget.ListAdapter;
 import android.widget.ListView;
 import android.widget.RadioButton;
-import android.widget.SimpleCursorAdapter;
+import android.widget.TextView;
+import android.widget.AbsListView.OnScrollListener;
+import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.CompoundButton.OnCheckedChangeListener;
 
+import org.npr.android.util.PlaylistEntry;
 import org.npr.android.util.PlaylistProvider;
 import org.npr.android.util.Tracker;
 import org.npr.android.util.PlaylistProvider.Items;
 import org.npr.android.util.Tracker.ActivityMeasurement;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Shows the playlist. Rows are queried in the background, a page at a time,
+ * each page starting after the last row loaded and added to the end as the
+ * list is scrolled towards it. When the playlist changes, only the rows
+ * already loaded are queried again, and compared with what is shown, so
+ * that only rows that differ are redrawn.
+ */
 public class PlaylistActivity extends Activity implements OnClickListener,
-    OnCheckedChangeListener, OnItemClickListener, Trackable {
+    OnCheckedChangeListener, OnItemClickListener, OnScrollListener,
+    Trackable {
   private static final String LOG_TAG = PlaylistActivity.class.getName();
   private boolean filterUnread = true;
 
+  private static final int MENU_MOVE_TOP = 0;
+  private static final int MENU_MOVE_UP = 1;
+  private static final int MENU_MOVE_DOWN = 2;
+  private static final int MENU_MOVE_BOTTOM = 3;
+
+  private static final int MSG_ROWS = 0;
+  private static final int MSG_PAGE = 1;
+  // Rows are loaded this many at a time, and the next lot is asked for when
+  // the list is scrolled to within this many of the end.
+  private static final int WINDOW = 100;
+  private static final int PREFETCH = 20;
+  private static final String[] PROJECTION = { Items._ID, Items.NAME,
+      Items.PLAY_ORDER };
+  // Rows are ordered by play order then id. These pick out the rows after
+  // and up to a row, given its play order twice and then its id.
+  private static final String FILTER = Items.IS_READ + " = ?";
+  private static final String AFTER = FILTER + " AND (" + Items.PLAY_ORDER +
+      " > ? OR (" + Items.PLAY_ORDER + " = ? AND " + Items._ID + " > ?))";
+  private static final String UP_TO = FILTER + " AND (" + Items.PLAY_ORDER +
+      " < ? OR (" + Items.PLAY_ORDER + " = ? AND " + Items._ID + " <= ?))";
+  private static final String ORDER = Items.PLAY_ORDER + ", " + Items._ID;
+
+  private ListView listView;
+  private PlaylistAdapter adapter;
+  private boolean hasMore = false;
+  private boolean isLoading = false;
+  private boolean isLoadPending = false;
+  // Counts queries, so that rows from a query overtaken by a change of
+  // filter can be told apart and dropped.
+  private int generation = 0;
+  // Set when the screen goes, so queued queries are skipped; queued writes
+  // still run.
+  private volatile boolean isDestroyed = false;
+
+  private final ExecutorService loader =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "PlaylistLoader");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final Handler handler = new Handler() {
+    @Override
+    public void handleMessage(Message msg) {
+      switch (msg.what) {
+        case MSG_ROWS:
+          isLoading = false;
+          if (msg.arg1 == generation && !isFinishing()) {
+            @SuppressWarnings("unchecked")
+            List<PlaylistEntry> rows = (List<PlaylistEntry>) msg.obj;
+            hasMore = msg.arg2 != 0;
+            adapter.update(rows);
+          }
+          loadPending();
+          break;
+        case MSG_PAGE:
+          isLoading = false;
+          if (msg.arg1 == generation && !isFinishing()) {
+            @SuppressWarnings("unchecked")
+            List<PlaylistEntry> rows = (List<PlaylistEntry>) msg.obj;
+            hasMore = rows.size() > WINDOW;
+            if (hasMore) {
+              rows.remove(rows.size() - 1);
+            }
+            adapter.append(rows);
+          }
+          loadPending();
+          break;
+      }
+    }
+  };
+
+  private final ContentObserver observer = new ContentObserver(handler) {
+    @Override
+    public void onChange(boolean selfChange) {
+      load();
+    }
+  };
+
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
@@ -55,37 +165,251 @@ public class PlaylistActivity extends Activity implements OnClickListener,
 
     unreadButton.setOnCheckedChangeListener(this);
     readButton.setOnCheckedChangeListener(this);
-    
-    refreshList();
+
+    listView = (ListView) findViewById(R.id.ListView01);
+    adapter = new PlaylistAdapter(this);
+    listView.setAdapter(adapter);
+    listView.setOnItemClickListener(this);
+    listView.setOnScrollListener(this);
+    registerForContextMenu(listView);
+
+    getContentResolver().registerContentObserver(PlaylistProvider.CONTENT_URI,
+        true, observer);
+    load();
     trackNow();
   }
 
-  
-  private void refreshList() {
-    String[] cols = new String[] {Items.NAME};
-    Cursor cursor =
-        managedQuery(PlaylistProvider.CONTENT_URI, null,
-            Items.IS_READ + " = ?", new String[] {filterUnread ? "0" : "1"},
-            Items.PLAY_ORDER);
-    Log.d(LOG_TAG, "" + cursor.getCount());
-    startManagingCursor(cursor);
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    getContentResolver().unregisterContentObserver(observer);
+    isDestroyed = true;
+    generation++;
+    loader.shutdown();
+  }
 
-    ListAdapter adapter =
-        new SimpleCursorAdapter(this, R.layout.playlist_item,
-            cursor, cols, new int[] {R.id.PlaylistItemText});
+  /**
+   * Queries again, in the background, the rows that have been loaded, and
+   * whether there are any after them. If none have been loaded, the first
+   * page is loaded instead. Changes that come in while a query is running
+   * are covered by one more query after it.
+   */
+  private void load() {
+    if (isLoading) {
+      isLoadPending = true;
+      return;
+    }
+    if (adapter.getCount() == 0) {
+      loadPage();
+      return;
+    }
+    isLoading = true;
+    final int thisGeneration = generation;
+    final String[] args = afterArgs(adapter.getItem(adapter.getCount() - 1));
+    loader.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (isDestroyed) {
+          return;
+        }
+        List<PlaylistEntry> rows =
+            query(PlaylistProvider.CONTENT_URI, UP_TO, args);
+        boolean more =
+            !query(PlaylistProvider.withLimit(1), AFTER, args).isEmpty();
+        handler.sendMessage(handler.obtainMessage(MSG_ROWS, thisGeneration,
+            more ? 1 : 0, rows));
+      }
+    });
+  }
 
-    ListView listView = (ListView) findViewById(R.id.ListView01);
-    listView.setAdapter(adapter);
-    listView.setOnItemClickListener(this);
+  /**
+   * Loads, in the background, the page of rows after the last one loaded.
+   */
+  private void loadPage() {
+    isLoading = true;
+    final int thisGeneration = generation;
+    int count = adapter.getCount();
+    final String selection = count == 0 ? FILTER : AFTER;
+    final String[] args = count == 0 ? new String[] { getFilterArg() } :
+        afterArgs(adapter.getItem(count - 1));
+    loader.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (isDestroyed) {
+          return;
+        }
+        // One more than a page, to find out whether there are more.
+        List<PlaylistEntry> rows =
+            query(PlaylistProvider.withLimit(WINDOW + 1), selection, args);
+        handler.sendMessage(handler.obtainMessage(MSG_PAGE, thisGeneration,
+            0, rows));
+      }
+    });
+  }
+
+  private void loadPending() {
+    if (isLoadPending) {
+      isLoadPending = false;
+      load();
+    }
+  }
+
+  private String getFilterArg() {
+    return filterUnread ? "0" : "1";
+  }
+
+  /**
+   * @return The arguments for {@link #AFTER} and {@link #UP_TO} at a row
+   */
+  private String[] afterArgs(PlaylistEntry row) {
+    String order = Long.toString(row.order);
+    return new String[] { getFilterArg(), order, order,
+        Long.toString(row.id) };
+  }
+
+  /**
+   * Runs a query for rows on the loader thread.
+   */
+  private List<PlaylistEntry> query(Uri uri, String selection,
+      String[] args) {
+    List<PlaylistEntry> rows = new ArrayList<PlaylistEntry>();
+    Cursor c = getContentResolver().query(uri, PROJECTION, selection, args,
+        ORDER);
+    if (c != null) {
+      try {
+        while (c.moveToNext()) {
+          rows.add(new PlaylistEntry(c.getLong(0), null, c.getString(1),
+              false, c.getLong(2)));
+        }
+      } finally {
+        c.close();
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * Starts over on a different filter.
+   */
+  private void reload() {
+    generation++;
+    hasMore = false;
+    adapter.update(new ArrayList<PlaylistEntry>());
+    load();
+  }
+
+  @Override
+  public void onScroll(AbsListView view, int firstVisibleItem,
+      int visibleItemCount, int totalItemCount) {
+    if (hasMore && !isLoading &&
+        firstVisibleItem + visibleItemCount >= totalItemCount - PREFETCH) {
+      loadPage();
+    }
+  }
+
+  @Override
+  public void onScrollStateChanged(AbsListView view, int scrollState) {
+  }
+
+  @Override
+  public void onCreateContextMenu(ContextMenu menu, View v,
+      ContextMenuInfo menuInfo) {
+    super.onCreateContextMenu(menu, v, menuInfo);
+    menu.add(Menu.NONE, MENU_MOVE_TOP, Menu.NONE,
+        R.string.msg_playlist_move_top);
+    menu.add(Menu.NONE, MENU_MOVE_UP, Menu.NONE,
+        R.string.msg_playlist_move_up);
+    menu.add(Menu.NONE, MENU_MOVE_DOWN, Menu.NONE,
+        R.string.msg_playlist_move_down);
+    menu.add(Menu.NONE, MENU_MOVE_BOTTOM, Menu.NONE,
+        R.string.msg_playlist_move_bottom);
+  }
+
+  /**
+   * Moves an item by putting it after another, which only changes the moved
+   * item's row.
+   */
+  @Override
+  public boolean onContextItemSelected(MenuItem item) {
+    AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();
+    int position = info.position;
+    int last = adapter.getCount() - 1;
+    long afterId;
+    switch (item.getItemId()) {
+      case MENU_MOVE_TOP:
+        afterId = -1;
+        break;
+      case MENU_MOVE_UP:
+        if (position == 0) {
+          return true;
+        }
+        afterId = position > 1 ? adapter.getItemId(position - 2) : -1;
+        break;
+      case MENU_MOVE_DOWN:
+        if (position == last) {
+          return true;
+        }
+        afterId = adapter.getItemId(position + 1);
+        break;
+      case MENU_MOVE_BOTTOM:
+        if (position == last && !hasMore) {
+          return true;
+        }
+        // The last row loaded is only the last row if there are no more.
+        afterId = hasMore ? -2 : adapter.getItemId(last);
+        break;
+      default:
+        return super.onContextItemSelected(item);
+    }
+    move(info.id, afterId);
+    return true;
+  }
+
+  /**
+   * Moves an item in the background. An afterId of -2 means after the last
+   * item in the list.
+   */
+  private void move(final long id, final long afterId) {
+    final String[] args = new String[] { getFilterArg() };
+    loader.execute(new Runnable() {
+      @Override
+      public void run() {
+        long after = afterId;
+        if (after == -2) {
+          Cursor c = getContentResolver().query(
+              PlaylistProvider.withLimit(1), PROJECTION,
+              Items.IS_READ + " = ?", args,
+              Items.PLAY_ORDER + " DESC, " + Items._ID + " DESC");
+          if (c == null) {
+            return;
+          }
+          try {
+            if (!c.moveToFirst()) {
+              return;
+            }
+            after = c.getLong(0);
+          } finally {
+            c.close();
+          }
+        }
+        PlaylistProvider.move(getContentResolver(), id, after);
+      }
+    });
   }
 
   @Override
   public void onClick(View arg0) {
     switch(arg0.getId()) {
       case R.id.PlaylistClear:
-        getContentResolver().delete(PlaylistProvider.CONTENT_URI,
-            Items.IS_READ + " = ?", new String[] {filterUnread ? "0" : "1"});
-        refreshList();
+        final String[] args = new String[] { getFilterArg() };
+        // The change notification brings the list up to date.
+        loader.execute(new Runnable() {
+          @Override
+          public void run() {
+            getContentResolver().delete(PlaylistProvider.CONTENT_URI,
+                Items.IS_READ + " = ?", args);
+          }
+        });
         break;
     }
   }
@@ -98,11 +422,11 @@ public class PlaylistActivity extends Activity implements OnClickListener,
     switch(buttonView.getId()) {
       case R.id.RadioButton01:
         filterUnread = isChecked;
-        refreshList();
+        reload();
         break;
       case R.id.RadioButton02:
         filterUnread = !isChecked;
-        refreshList();
+        reload();
         break;
     }
     trackNow();
@@ -111,16 +435,100 @@ public class PlaylistActivity extends Activity implements OnClickListener,
   @Override
   public void onItemClick(AdapterView<?> parent, View view, int position,
       long id) {
-    Cursor c = (Cursor) parent.getItemAtPosition(position);
-    if (c != null) {
-      c.moveToPosition(position);
-      long playlistId = c.getLong(c.getColumnIndex(Items._ID));
-      Log.d(LOG_TAG, "clicked on position " + position + ", id " + playlistId);
-    }
+    PlaylistEntry entry = adapter.getItem(position);
+    Log.d(LOG_TAG, "clicked on position " + position + ", id " + entry.id);
     // TODO: play audio
     finish();
   }
 
+  /**
+   * The rows on screen. New rows are compared with the old, so that when
+   * only some rows' text has changed just those are redrawn, and when
+   * nothing visible has changed nothing is.
+   */
+  private class PlaylistAdapter extends BaseAdapter {
+    private final LayoutInflater inflater;
+    private List<PlaylistEntry> rows = new ArrayList<PlaylistEntry>();
+
+    PlaylistAdapter(Context context) {
+      inflater = LayoutInflater.from(context);
+    }
+
+    void update(List<PlaylistEntry> newRows) {
+      boolean isSameItems = newRows.size() == rows.size();
+      List<Integer> changed = new ArrayList<Integer>();
+      for (int i = 0; isSameItems && i < newRows.size(); i++) {
+        PlaylistEntry oldRow = rows.get(i);
+        PlaylistEntry newRow = newRows.get(i);
+        if (oldRow.id != newRow.id) {
+          isSameItems = false;
+        } else if (!equal(oldRow.title, newRow.title)) {
+          changed.add(i);
+        }
+      }
+      rows = newRows;
+      if (!isSameItems) {
+        notifyDataSetChanged();
+        return;
+      }
+      int first = listView.getFirstVisiblePosition();
+      for (int position : changed) {
+        View row = listView.getChildAt(position - first);
+        if (row != null) {
+          bindView(row, rows.get(position));
+        }
+      }
+      if (changed.size() > 0) {
+        Log.d(LOG_TAG, "Redrew " + changed.size() + " changed rows");
+      }
+    }
+
+    void append(List<PlaylistEntry> page) {
+      if (page.isEmpty()) {
+        return;
+      }
+      rows.addAll(page);
+      notifyDataSetChanged();
+    }
+
+    private boolean equal(String a, String b) {
+      return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public int getCount() {
+      return rows.size();
+    }
+
+    @Override
+    public PlaylistEntry getItem(int position) {
+      return rows.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+      return rows.get(position).id;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+      return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+      if (convertView == null) {
+        convertView = inflater.inflate(R.layout.playlist_item, parent, false);
+      }
+      bindView(convertView, rows.get(position));
+      return convertView;
+    }
+
+    private void bindView(View row, PlaylistEntry entry) {
+      ((TextView) row.findViewById(R.id.PlaylistItemText)).setText(
+          entry.title);
+    }
+  }
 
   @Override
   public void trackNow() {
@@ -0,0 +1,89 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package org.npr.android.news;
+
+import org.npr.android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Remembers what stations' playlist files resolved to, so that tuning back
+ * in to a station within a while goes straight to its stream without
+ * downloading the playlist again. Keyed by playlist URL.
+ */
+public class PlaylistCache {
+  // Stations' playlists rarely change, but they do change.
+  public static final long DEFAULT_TTL = 30 * 60 * 1000;
+  private static final int MAX_PLAYLISTS = 32;
+
+  private static PlaylistCache instance;
+
+  private final LruCache<String, Entry> cache =
+      new LruCache<String, Entry>(MAX_PLAYLISTS);
+  private final long ttl;
+
+  private static class Entry {
+    final List<String> urls;
+    final long time;
+
+    Entry(List<String> urls, long time) {
+      this.urls = urls;
+      this.time = time;
+    }
+  }
+
+  public PlaylistCache(long ttl) {
+    this.ttl = ttl;
+  }
+
+  public static synchronized PlaylistCache instance() {
+    if (instance == null) {
+      instance = new PlaylistCache(DEFAULT_TTL);
+    }
+    return instance;
+  }
+
+  /**
+   * @return The URLs the playlist resolved to, or null if it has not been
+   *         resolved lately. The list may not be changed.
+   */
+  public List<String> get(String playlistUrl) {
+    Entry entry = cache.get(playlistUrl);
+    if (entry == null) {
+      return null;
+    }
+    if (System.currentTimeMillis() - entry.time > ttl) {
+      cache.remove(playlistUrl);
+      return null;
+    }
+    return entry.urls;
+  }
+
+  /**
+   * Records what a playlist resolved to. Empty playlists are not kept, so
+   * that they are tried again.
+   */
+  public void put(String playlistUrl, List<String> urls) {
+    if (urls.isEmpty()) {
+      return;
+    }
+    cache.put(playlistUrl, new Entry(
+        Collections.unmodifiableList(new ArrayList<String>(urls)),
+        System.currentTimeMillis()));
+  }
+}
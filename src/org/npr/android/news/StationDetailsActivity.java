@@ -15,7 +15,7 @@
 package org.npr.android.news;
 
 import android.content.Intent;
-import android.graphics.drawable.Drawable;
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -25,8 +25,10 @@ import android.widget.ExpandableListView;
 import android.widget.ImageView;
 import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.widget.ExpandableListView.OnChildClickListener;
 
+import org.npr.android.util.PlaylistEntry;
 import org.npr.android.util.Tracker;
 import org.npr.android.util.Tracker.StationDetailsMeasurement;
 import org.npr.api.Station;
@@ -40,6 +42,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 public class StationDetailsActivity extends PlayerActivity implements
     OnChildClickListener {
@@ -47,17 +50,42 @@ public class StationDetailsActivity extends PlayerActivity implements
   private Station station;
   private ImageView imageView;
   private ImageView iconView;
-  private Drawable imageDrawable;
+  private Future<?> imageRequest;
+  private Future<?> race;
+
+  private static final int MSG_STATION = 0;
+  private static final int MSG_STREAM_RACED = 1;
+  // The "num" of the list item that races all the streams.
+  private static final int FAST_START = -1;
+  // Station logos are shown at up to this size.
+  private static final int IMAGE_SIZE_DIP = 120;
 
   private Handler handler = new Handler() {
     @Override
     public void handleMessage(Message msg) {
       switch (msg.what) {
-        case 0:
-          if (imageDrawable != null) {
-            iconView.setVisibility(View.GONE);
-            imageView.setImageDrawable(imageDrawable);
-            imageView.setVisibility(View.VISIBLE);
+        case MSG_STATION:
+          if (isFinishing()) {
+            break;
+          }
+          station = (Station) msg.obj;
+          if (station == null) {
+            finish();
+          } else {
+            showStation();
+          }
+          break;
+        case MSG_STREAM_RACED:
+          race = null;
+          if (isFinishing()) {
+            break;
+          }
+          String url = (String) msg.obj;
+          if (url == null) {
+            Toast.makeText(StationDetailsActivity.this,
+                R.string.msg_station_no_stream, Toast.LENGTH_SHORT).show();
+          } else {
+            playStream(url);
           }
           break;
       }
@@ -67,17 +95,29 @@ public class StationDetailsActivity extends PlayerActivity implements
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     stationId = getIntent().getStringExtra(Constants.EXTRA_STATION_ID);
-    station = StationListActivity.getStationFromCache(stationId);
-
-    if (station == null) {
-      finish();
-    }
+    // Stations from a list we have shown are already cached; anything else
+    // is loaded in the background and filled in when it arrives.
+    station = StationRepository.instance().peek(stationId);
 
     super.onCreate(savedInstanceState);
 
     ViewGroup container = (ViewGroup) findViewById(R.id.Content);
     ViewGroup.inflate(this, R.layout.station_details, container);
 
+    if (station != null) {
+      showStation();
+    } else {
+      TextView miscText = (TextView) findViewById(R.id.StationMiscText);
+      TextView taglineText = (TextView) findViewById(R.id.StationTaglineText);
+      miscText.setText(R.string.msg_loading);
+      taglineText.setText("");
+      StationRepository.instance().fetch(stationId, handler, MSG_STATION);
+    }
+  }
+
+  private void showStation() {
+    refreshMainTitle();
+
     TextView miscText = (TextView) findViewById(R.id.StationMiscText);
     TextView taglineText = (TextView) findViewById(R.id.StationTaglineText);
     miscText.setText(new StringBuilder().append(station.getFrequency()).append(
@@ -87,19 +127,36 @@ public class StationDetailsActivity extends PlayerActivity implements
 
     iconView = (ImageView) findViewById(R.id.StationDetailsIcon);
     imageView = (ImageView) findViewById(R.id.StationDetailsImage);
-    final String image = station.getImage();
+    String image = station.getImage();
     if (image != null) {
-      Thread imageInitThread = new Thread(new Runnable() {
-        public void run() {
-          imageDrawable = DownloadDrawable.createFromUrl(image);
-          handler.sendEmptyMessage(0);
-        }
-      });
-      imageInitThread.start();
+      int size = (int) (IMAGE_SIZE_DIP *
+          getResources().getDisplayMetrics().density + 0.5f);
+      imageRequest = ImageLoader.instance(this).load(image, size, size,
+          new ImageLoader.Callback() {
+            @Override
+            public void onImageLoaded(String url, Bitmap bitmap) {
+              if (bitmap != null) {
+                iconView.setVisibility(View.GONE);
+                imageView.setImageBitmap(bitmap);
+                imageView.setVisibility(View.VISIBLE);
+              }
+            }
+          });
     }
     constructList();
   }
 
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    if (imageRequest != null) {
+      imageRequest.cancel(true);
+    }
+    if (race != null) {
+      race.cancel(true);
+    }
+  }
+
   @SuppressWarnings("unchecked")
   private void constructList() {
     int[] topLevel = new int[] { R.string.msg_station_streams,
@@ -129,6 +186,12 @@ public class StationDetailsActivity extends PlayerActivity implements
       group1.put(groupFrom[0], String.format("%s (%d)", getString(topLevel[0]),
           streams.size()));
       groupData.add(group1);
+      if (streams.size() > 1) {
+        Map<String, String> fastStart = new HashMap<String, String>();
+        children.add(fastStart);
+        fastStart.put(childFrom[0], getString(R.string.msg_station_fast_start));
+        fastStart.put(childFrom[1], "" + FAST_START);
+      }
       for (Iterator<AudioStream> it = streams.iterator(); it.hasNext();) {
         AudioStream stream = it.next();
         int i = ((ListIterator) it).previousIndex();
@@ -182,9 +245,30 @@ public class StationDetailsActivity extends PlayerActivity implements
     }
   }
 
+  /**
+   * Plays whichever of the station's streams starts first.
+   */
+  private void fastStart() {
+    if (race != null) {
+      return;
+    }
+    List<String> urls = new ArrayList<String>();
+    for (AudioStream stream : station.getAudioStreams()) {
+      urls.add(stream.getUrl());
+    }
+    Toast.makeText(this, R.string.msg_station_fast_starting,
+        Toast.LENGTH_SHORT).show();
+    race = StreamRacer.instance().race(stationId, urls, handler,
+        MSG_STREAM_RACED);
+  }
+
+  private void playStream(String url) {
+    listen(new PlaylistEntry(-1, url, station.getName(), true, -1));
+  }
+
   @Override
   public CharSequence getMainTitle() {
-    return station.getName();
+    return station == null ? "" : station.getName();
   }
 
   @SuppressWarnings("unchecked")
@@ -199,8 +283,12 @@ public class StationDetailsActivity extends PlayerActivity implements
     Intent i;
     switch(groupPosition) {
       case 0:
-        l = station.getAudioStreams().get(num);
-        // TODO: play audio
+        if (num == FAST_START) {
+          fastStart();
+        } else {
+          l = station.getAudioStreams().get(num);
+          playStream(l.getUrl());
+        }
         break;
       case 1:
         l = station.getPodcasts().get(num);
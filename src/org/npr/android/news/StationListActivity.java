@@ -31,39 +31,18 @@ import org.npr.android.util.Tracker;
 import org.npr.android.util.Tracker.StationListMeasurement;
 import org.npr.api.Station;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 public class StationListActivity extends PlayerActivity implements
     OnItemClickListener, OnClickListener {
 
   public static final String EXTRA_STATION_SEARCH_URL =
       "extra_station_search_url";
-  private static Map<String, Station> stationCache =
-      new HashMap<String, Station>();
   private String query;
 
-  public static Station getStationFromCache(String stationId) {
-    Station result = stationCache.get(stationId);
-    if (result == null) {
-      result = Station.StationFactory.downloadStation(stationId);
-      stationCache.put(stationId, result);
-    }
-    return result;
-  }
-
-  public static void addAllToStationCache(List<Station> stations) {
-    for (Station station : stations) {
-      stationCache.put(station.getId(), station);
-    }
-  }
-
   @Override
   public void onLowMemory() {
     super.onLowMemory();
     listAdapter.clear();
-    stationCache.clear();
+    StationRepository.instance().clear();
   }
 
   private Handler handler = new Handler() {
@@ -66,7 +66,7 @@ public class StationListAdapter extends ArrayAdapter<Station> {
     Log.d(LOG_TAG, "stations: " + stations.getNodeName());
 
     data = StationFactory.parseStations(stations);
-    StationListActivity.addAllToStationCache(data);
+    StationRepository.instance().putAll(data);
   }
 
   public void showData() {
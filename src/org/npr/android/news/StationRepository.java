@@ -0,0 +1,190 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.news;
+
+import android.os.Handler;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import org.npr.android.util.LruCache;
+import org.npr.api.Station;
+import org.npr.api.Station.StationFactory;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Stations, fetched in the background and kept in a bounded cache. Stations
+ * that arrive with a station list are cached straight away, so their details
+ * can be shown without another request; any others are downloaded on demand,
+ * with at most one download in flight per station.
+ */
+public class StationRepository {
+  private static final String LOG_TAG = StationRepository.class.getName();
+  private static final int MAX_STATIONS = 64;
+  private static final int THREADS = 2;
+
+  private static StationRepository instance;
+
+  private final LruCache<String, Station> stations =
+      new LruCache<String, Station>(MAX_STATIONS);
+  private final Map<String, StationTask> inFlight =
+      new HashMap<String, StationTask>();
+  private final ExecutorService executor =
+      Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+          Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+              r.run();
+            }
+          }, "StationRepository");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  public static synchronized StationRepository instance() {
+    if (instance == null) {
+      instance = new StationRepository();
+    }
+    return instance;
+  }
+
+  /**
+   * @return The station if it is cached, otherwise null. Never blocks.
+   */
+  public Station peek(String stationId) {
+    return stations.get(stationId);
+  }
+
+  public void putAll(List<Station> list) {
+    for (Station station : list) {
+      stations.put(station.getId(), station);
+    }
+  }
+
+  /**
+   * Fetches a station. If the station is cached the future is already done;
+   * otherwise it completes when the download does, with null if the download
+   * failed.
+   */
+  public Future<Station> fetch(String stationId) {
+    return getTask(stationId);
+  }
+
+  /**
+   * Fetches a station and sends the result to a handler, as the obj of a
+   * message with the given what. The message is sent even if the station is
+   * cached, so callers have a single code path.
+   */
+  public void fetch(String stationId, Handler handler, int what) {
+    getTask(stationId).addListener(handler.obtainMessage(what));
+  }
+
+  public void clear() {
+    stations.evictAll();
+  }
+
+  private StationTask getTask(final String stationId) {
+    Station cached = stations.get(stationId);
+    if (cached != null) {
+      StationTask done = new StationTask(stationId, cached);
+      done.run();
+      return done;
+    }
+    synchronized (inFlight) {
+      StationTask task = inFlight.get(stationId);
+      if (task == null) {
+        task = new StationTask(stationId, null);
+        inFlight.put(stationId, task);
+        executor.execute(task);
+      }
+      return task;
+    }
+  }
+
+  private class StationTask extends FutureTask<Station> {
+    private final String stationId;
+    private final List<Message> listeners = new LinkedList<Message>();
+
+    private StationTask(final String stationId, final Station cached) {
+      super(new Callable<Station>() {
+        @Override
+        public Station call() {
+          if (cached != null) {
+            return cached;
+          }
+          Station station = StationFactory.downloadStation(stationId);
+          if (station != null) {
+            stations.put(stationId, station);
+          }
+          return station;
+        }
+      });
+      this.stationId = stationId;
+    }
+
+    private void addListener(Message message) {
+      synchronized (listeners) {
+        if (!isDone()) {
+          listeners.add(message);
+          return;
+        }
+      }
+      send(message);
+    }
+
+    @Override
+    protected void done() {
+      synchronized (inFlight) {
+        if (inFlight.get(stationId) == this) {
+          inFlight.remove(stationId);
+        }
+      }
+      synchronized (listeners) {
+        for (Message message : listeners) {
+          send(message);
+        }
+        listeners.clear();
+      }
+    }
+
+    private void send(Message message) {
+      Station station = null;
+      try {
+        station = get();
+      } catch (InterruptedException e) {
+        Log.e(LOG_TAG, "", e);
+      } catch (ExecutionException e) {
+        Log.e(LOG_TAG, "", e);
+      }
+      message.obj = station;
+      message.sendToTarget();
+    }
+  }
+}
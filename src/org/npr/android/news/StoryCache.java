@@ -0,0 +1,242 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.news;
+
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+import org.npr.android.util.CoalescingLoader;
+import org.npr.android.util.LruCache;
+import org.npr.api.Story;
+import org.npr.api.Story.Audio;
+import org.npr.api.Story.Image;
+import org.npr.api.Story.StoryFactory;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Stories that have been downloaded, bounded by their approximate size in
+ * memory. Stories missing from the cache can be downloaded on the calling
+ * thread or in the background, and concurrent requests for the same story
+ * share one download.
+ */
+public class StoryCache {
+  private static final String LOG_TAG = StoryCache.class.getName();
+
+  // These mirror the ComponentCallbacks2.TRIM_MEMORY_* levels, which are not
+  // available in the SDK we build against.
+  public static final int TRIM_MEMORY_COMPLETE = 80;
+  public static final int TRIM_MEMORY_MODERATE = 60;
+  public static final int TRIM_MEMORY_BACKGROUND = 40;
+  public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+
+  // Rough per-object overhead, in bytes, of the small objects that make up a
+  // story.
+  private static final int OBJECT_OVERHEAD = 32;
+
+  private static StoryCache instance;
+
+  private final LruCache<String, Story> stories;
+  private final CoalescingLoader<String, Story> loader =
+      new CoalescingLoader<String, Story>() {
+        @Override
+        protected Story load(String storyId) {
+          // A load that finished after the caller missed the cache, but
+          // before this one began, has already stored the story.
+          Story story = stories.get(storyId);
+          if (story != null) {
+            return story;
+          }
+          story = StoryFactory.downloadStory(storyId);
+          if (story != null) {
+            stories.put(storyId, story);
+          }
+          return story;
+        }
+      };
+
+  // Stories someone is waiting for, and stories we guess they will want
+  // next. Prefetches run one at a time at background priority so that they
+  // never compete with the UI or with a story the user has asked for.
+  private final ExecutorService loadExecutor =
+      Executors.newCachedThreadPool(
+          new LoaderThreadFactory(Process.THREAD_PRIORITY_DEFAULT));
+  private final ExecutorService prefetchExecutor =
+      Executors.newSingleThreadExecutor(
+          new LoaderThreadFactory(Process.THREAD_PRIORITY_BACKGROUND));
+
+  private static class LoaderThreadFactory implements ThreadFactory {
+    private final int priority;
+
+    private LoaderThreadFactory(int priority) {
+      this.priority = priority;
+    }
+
+    @Override
+    public Thread newThread(final Runnable r) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Process.setThreadPriority(priority);
+          r.run();
+        }
+      }, "StoryCache");
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+  private StoryCache(int maxBytes) {
+    stories = new LruCache<String, Story>(maxBytes) {
+      @Override
+      protected int sizeOf(String key, Story story) {
+        return weigh(story);
+      }
+    };
+  }
+
+  /**
+   * @return The cache, sized to a sixteenth of the heap available to the
+   *         application
+   */
+  public static synchronized StoryCache instance() {
+    if (instance == null) {
+      long maxMemory = Runtime.getRuntime().maxMemory();
+      instance = new StoryCache((int) Math.min(maxMemory / 16,
+          Integer.MAX_VALUE));
+    }
+    return instance;
+  }
+
+  /**
+   * Returns a story, downloading it if it is not cached. This may block, so
+   * it must not be called on the UI thread when the story may be missing.
+   *
+   * @return The story, or null if it could not be downloaded
+   */
+  public Story get(String storyId) {
+    Story story = stories.get(storyId);
+    if (story == null) {
+      story = loader.get(storyId);
+    }
+    return story;
+  }
+
+  /**
+   * Gets a story in the background and sends it to a handler, as the obj of
+   * a message with the given what; obj is null if the story could not be
+   * downloaded.
+   */
+  public void fetch(final String storyId, final Handler handler,
+      final int what) {
+    loadExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        handler.obtainMessage(what, get(storyId)).sendToTarget();
+      }
+    });
+  }
+
+  /**
+   * Downloads a story at low priority if it is not already cached, in the
+   * expectation that it will be asked for soon.
+   */
+  public void prefetch(final String storyId) {
+    if (stories.get(storyId) != null) {
+      return;
+    }
+    prefetchExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        get(storyId);
+      }
+    });
+  }
+
+  /**
+   * @return The story if it is cached, otherwise null. Never blocks.
+   */
+  public Story peek(String storyId) {
+    return stories.get(storyId);
+  }
+
+  public void putAll(List<Story> list) {
+    for (Story story : list) {
+      stories.put(story.getId(), story);
+    }
+  }
+
+  /**
+   * Releases memory according to how hard pressed the system is. Lower
+   * levels keep the most recently used stories around.
+   *
+   * @param level One of the TRIM_MEMORY constants
+   */
+  public void trim(int level) {
+    int maxSize = stories.maxSize();
+    if (level >= TRIM_MEMORY_COMPLETE) {
+      stories.evictAll();
+    } else if (level >= TRIM_MEMORY_MODERATE) {
+      stories.trimToSize(maxSize / 4);
+    } else if (level >= TRIM_MEMORY_BACKGROUND) {
+      stories.trimToSize(maxSize / 2);
+    } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+      stories.trimToSize(maxSize * 3 / 4);
+    }
+    Log.d(LOG_TAG, "Trimmed to " + stories.size() + " bytes at level " +
+        level);
+  }
+
+  /**
+   * @return The approximate number of bytes a story holds on to: its
+   *         paragraphs, plus its audio and images
+   */
+  static int weigh(Story story) {
+    int size = OBJECT_OVERHEAD;
+    if (story.getText() != null) {
+      size += weighStrings(story.getText().getParagraphs());
+    }
+    if (story.getTextWithHtml() != null) {
+      size += weighStrings(story.getTextWithHtml().getParagraphs());
+    }
+    for (Audio audio : story.getAudios()) {
+      size += OBJECT_OVERHEAD + weigh(audio.getDuration());
+      for (Audio.Format format : audio.getFormats()) {
+        size += OBJECT_OVERHEAD + weigh(format.getMp3()) +
+            weigh(format.getWm()) + weigh(format.getRm());
+      }
+    }
+    for (Image image : story.getImages()) {
+      size += OBJECT_OVERHEAD + weigh(image.getSrc());
+    }
+    return size;
+  }
+
+  private static int weighStrings(List<String> strings) {
+    int size = 0;
+    for (String s : strings) {
+      size += OBJECT_OVERHEAD + weigh(s);
+    }
+    return size;
+  }
+
+  private static int weigh(String s) {
+    return s == null ? 0 : 2 * s.length();
+  }
+}
@@ -21,6 +21,7 @@ import org.apache.http.Header;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseFactory;
+import org.apache.http.HttpStatus;
 import org.apache.http.ParseException;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.RequestLine;
@@ -46,20 +47,76 @@ import org.apache.http.message.ParserCursor;
 import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.util.CharArrayBuffer;
+import org.npr.api.HttpTransport;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A local HTTP proxy through which MediaPlayer plays streams it cannot
+ * handle by itself, such as Shoutcast's ICY responses. Each client is served
+ * on its own worker, so a seek or re-prepare from MediaPlayer does not have
+ * to wait for an earlier stream to end.
+ */
 public class StreamProxy implements Runnable {
   private static final String LOG_TAG = StreamProxy.class.getName();
+  /**
+   * Prefix a proxied URL with this to have it served through the
+   * {@link AudioCache}, for on-demand files that may be replayed or seeked.
+   */
+  public static final String CACHE_PREFIX = "cache/";
+  /**
+   * Prefix a proxied URL with this, and the number of bytes behind live to
+   * start at followed by a slash, to have a live stream recorded into a
+   * {@link TimeshiftBuffer} and played from it. The recording carries on
+   * while the client is paused, and a later request for the same stream
+   * picks up the same recording, so it can be rewound without reconnecting.
+   */
+  public static final String LIVE_PREFIX = "live/";
+  // How long a client waits for the station to answer.
+  private static final int LIVE_CONNECT_TIMEOUT = 30 * 1000;
+  // Streams served at once; further clients wait for a free worker.
+  private static final int MAX_CLIENTS = 4;
+  private static final int RELAY_BUFFER_SIZE = 1024 * 50;
+  private static final String HEADER_CHARSET = "ISO-8859-1";
+  // Asks Shoutcast and Icecast servers to interleave stream titles.
+  private static final String ICY_METADATA = "Icy-MetaData";
+  private static final String ICY_METAINT = "icy-metaint";
+  private static final String ICY_BITRATE = "icy-br";
+  // Jitter buffer defaults: the pre-roll, the deepest it will adapt to, and
+  // the memory given to streams that are not recorded (about 30 seconds at
+  // 128kbps).
+  private static final int PREROLL_MILLIS = 2000;
+  private static final int MAX_JITTER_MILLIS = 20000;
+  private static final int JITTER_BUFFER_SIZE = 512 * 1024;
+  // Reconnection backoff: the first delay, which doubles on each failed
+  // attempt up to the longest, and how many attempts before giving up.
+  private static final int RECONNECT_DELAY = 250;
+  private static final int MAX_RECONNECT_DELAY = 8000;
+  private static final int MAX_RECONNECT_ATTEMPTS = 8;
   
   private int port = 0;
 
@@ -67,15 +124,192 @@ public class StreamProxy implements Runnable {
     return port;
   }
 
-  private boolean isRunning = true;
-  private ServerSocket socket;
+  // Clients are written to through their channels. The relay buffer is
+  // direct, so the socket is written from it without a copy into a native
+  // buffer first, and it and the upstream buffer are reused for the life of
+  // each worker, so streaming allocates nothing per chunk however long a
+  // stream runs. Cached files skip both: they go from disk with transferTo.
+  private final ThreadLocal<ByteBuffer> relayBuffer =
+      new ThreadLocal<ByteBuffer>() {
+    @Override
+    protected ByteBuffer initialValue() {
+      return ByteBuffer.allocateDirect(RELAY_BUFFER_SIZE);
+    }
+  };
+  private final ThreadLocal<byte[]> upstreamBuffer =
+      new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[RELAY_BUFFER_SIZE];
+    }
+  };
+  private final AtomicLong bytesRelayed = new AtomicLong();
+
+  /**
+   * @return The number of bytes of content passed to clients so far
+   */
+  public long getBytesRelayed() {
+    return bytesRelayed.get();
+  }
+
+  /**
+   * Receives the titles of live streams, such as the program or song now
+   * playing, as the player reaches them.
+   */
+  public interface MetadataListener {
+    /**
+     * Called on a proxy thread when the title of a stream changes.
+     *
+     * @param url The stream's URL, without any proxy prefix
+     */
+    public void onStreamTitle(String url, String title);
+  }
+
+  private volatile MetadataListener metadataListener;
+
+  public void setMetadataListener(MetadataListener listener) {
+    metadataListener = listener;
+  }
+
+  private void notifyTitle(String url, String title) {
+    MetadataListener listener = metadataListener;
+    if (listener != null) {
+      listener.onStreamTitle(url, title);
+    }
+  }
+
+  private int prerollMillis = PREROLL_MILLIS;
+  private int maxJitterMillis = MAX_JITTER_MILLIS;
+  private volatile int bufferedMillis = 0;
+  private final AtomicInteger underruns = new AtomicInteger();
+
+  /**
+   * Sets how much of a stream is buffered before the player gets any, and
+   * the most that will be buffered when the network is unsteady.
+   */
+  public void setJitterBuffer(int prerollMillis, int maxMillis) {
+    this.prerollMillis = prerollMillis;
+    this.maxJitterMillis = maxMillis;
+  }
+
+  /**
+   * @return How much of the current stream is buffered ahead of the player,
+   *         in milliseconds
+   */
+  public int getBufferedMillis() {
+    return bufferedMillis;
+  }
+
+  /**
+   * @return The most that will be buffered ahead of the player, in
+   *         milliseconds
+   */
+  public int getMaxBufferedMillis() {
+    return maxJitterMillis;
+  }
+
+  /**
+   * @return The number of times a stream ran dry before the player was
+   *         done with it
+   */
+  public int getUnderruns() {
+    return underruns.get();
+  }
+
+  private final AtomicInteger reconnects = new AtomicInteger();
+  private final AtomicLong reconnectGapMillis = new AtomicLong();
+  private volatile long longestGapMillis = 0;
+
+  /**
+   * @return The number of times an upstream connection dropped and was
+   *         resumed
+   */
+  public int getReconnects() {
+    return reconnects.get();
+  }
+
+  /**
+   * @return The total time, in milliseconds, between upstream connections
+   *         dropping and being resumed
+   */
+  public long getReconnectGapMillis() {
+    return reconnectGapMillis.get();
+  }
+
+  /**
+   * @return The longest time, in milliseconds, taken to resume a dropped
+   *         upstream connection
+   */
+  public long getLongestGapMillis() {
+    return longestGapMillis;
+  }
+
+  private void recordReconnect(long gapMillis) {
+    reconnects.incrementAndGet();
+    reconnectGapMillis.addAndGet(gapMillis);
+    if (gapMillis > longestGapMillis) {
+      longestGapMillis = gapMillis;
+    }
+    Log.d(LOG_TAG, "Upstream resumed after " + gapMillis + "ms");
+  }
+
+  /**
+   * Waits before another attempt to reach a dropped upstream.
+   *
+   * @param attempt The number of attempts made so far
+   * @return false if it is time to give up
+   */
+  private boolean awaitReconnect(int attempt) {
+    if (!isRunning || attempt >= MAX_RECONNECT_ATTEMPTS) {
+      return false;
+    }
+    long delay = Math.min(MAX_RECONNECT_DELAY, RECONNECT_DELAY << attempt);
+    Log.d(LOG_TAG, "Reconnecting in " + delay + "ms");
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException e) {
+      return false;
+    }
+    return isRunning;
+  }
+
+  private JitterBuffer.Target newTarget(HttpResponse response) {
+    JitterBuffer.Target target =
+        new JitterBuffer.Target(prerollMillis, maxJitterMillis);
+    Header bitrate = response.getFirstHeader(ICY_BITRATE);
+    if (bitrate != null) {
+      try {
+        target.setByteRate(Integer.parseInt(bitrate.getValue().trim()) * 125);
+      } catch (NumberFormatException e) {
+        Log.w(LOG_TAG, "Bad " + ICY_BITRATE + " " + bitrate.getValue());
+      }
+    }
+    return target;
+  }
+
+  private File timeshiftFile;
+  private LiveSession liveSession;
+
+  /**
+   * Sets the file in which live streams are recorded. Without one, live
+   * streams are relayed straight through.
+   */
+  public void setTimeshiftFile(File file) {
+    timeshiftFile = file;
+  }
+
+  private volatile boolean isRunning = true;
+  private ServerSocketChannel socket;
   private Thread thread;
+  private ExecutorService workers;
+  private final Set<Socket> clients = new HashSet<Socket>();
 
   public void init() {
     try {
-      socket = new ServerSocket(port, 0, InetAddress.getByAddress(new byte[] {127,0,0,1}));
-      socket.setSoTimeout(5000);
-      port = socket.getLocalPort();
+      socket = ServerSocketChannel.open();
+      socket.socket().bind(new InetSocketAddress(
+          InetAddress.getByAddress(new byte[] {127,0,0,1}), port));
+      port = socket.socket().getLocalPort();
       Log.d(LOG_TAG, "port " + port + " obtained");
     } catch (UnknownHostException e) {
       Log.e(LOG_TAG, "Error initializing server", e);
@@ -90,6 +324,7 @@ public class StreamProxy implements Runnable {
       throw new IllegalStateException("Cannot start proxy; it has not been initialized.");
     }
     
+    workers = Executors.newFixedThreadPool(MAX_CLIENTS);
     thread = new Thread(this);
     thread.start();
   }
@@ -101,7 +336,24 @@ public class StreamProxy implements Runnable {
       throw new IllegalStateException("Cannot stop proxy; it has not been started.");
     }
     
-    thread.interrupt();
+    // Closing the server socket wakes the accept loop, and closing the client
+    // sockets ends any streams in progress.
+    try {
+      socket.close();
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Error closing server", e);
+    }
+    synchronized (clients) {
+      for (Socket client : clients) {
+        try {
+          client.close();
+        } catch (IOException e) {
+          // Ignore
+        }
+      }
+    }
+    workers.shutdownNow();
+    closeLiveSession();
     try {
       thread.join(5000);
     } catch (InterruptedException e) {
@@ -114,22 +366,53 @@ public class StreamProxy implements Runnable {
     Log.d(LOG_TAG, "running");
     while (isRunning) {
       try {
-        Socket client = socket.accept();
-        if (client == null) {
-          continue;
-        }
+        final Socket client = socket.accept().socket();
         Log.d(LOG_TAG, "client connected");
-        HttpRequest request = readRequest(client);
-        processRequest(request, client);
-      } catch (SocketTimeoutException e) {
-        // Do nothing
+        synchronized (clients) {
+          clients.add(client);
+        }
+        try {
+          workers.execute(new Runnable() {
+            @Override
+            public void run() {
+              serve(client);
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          // We are shutting down.
+          closeClient(client);
+        }
       } catch (IOException e) {
-        Log.e(LOG_TAG, "Error connecting to client", e);
+        if (isRunning) {
+          Log.e(LOG_TAG, "Error connecting to client", e);
+        }
       }
     }
     Log.d(LOG_TAG, "Proxy interrupted. Shutting down.");
   }
 
+  private void serve(Socket client) {
+    try {
+      HttpRequest request = readRequest(client);
+      processRequest(request, client);
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Error serving client", e);
+    } finally {
+      closeClient(client);
+    }
+  }
+
+  private void closeClient(Socket client) {
+    synchronized (clients) {
+      clients.remove(client);
+    }
+    try {
+      client.close();
+    } catch (IOException e) {
+      // Ignore
+    }
+  }
+
   private HttpRequest readRequest(Socket client) {
     HttpRequest request = null;
     InputStream is;
@@ -138,27 +421,39 @@ public class StreamProxy implements Runnable {
       is = client.getInputStream();
       BufferedReader reader = new BufferedReader(new InputStreamReader(is));
       firstLine = reader.readLine();
+      if (firstLine == null) {
+        Log.i(LOG_TAG, "Proxy client closed connection without a request.");
+        return request;
+      }
+
+      StringTokenizer st = new StringTokenizer(firstLine);
+      String method = st.nextToken();
+      String uri = st.nextToken();
+      Log.d(LOG_TAG, uri);
+      String realUri = uri.substring(1);
+      Log.d(LOG_TAG, realUri);
+      request = new BasicHttpRequest(method, realUri);
+
+      // Headers, up to the blank line. We only look at Range.
+      String line;
+      while ((line = reader.readLine()) != null && line.length() > 0) {
+        int colon = line.indexOf(':');
+        if (colon > 0) {
+          request.addHeader(line.substring(0, colon).trim(),
+              line.substring(colon + 1).trim());
+        }
+      }
     } catch (IOException e) {
       Log.e(LOG_TAG, "Error parsing request", e);
-      return request;
     }
-    
-    if (firstLine == null) {
-      Log.i(LOG_TAG, "Proxy client closed connection without a request.");
-      return request;
-    }
-
-    StringTokenizer st = new StringTokenizer(firstLine);
-    String method = st.nextToken();
-    String uri = st.nextToken();
-    Log.d(LOG_TAG, uri);
-    String realUri = uri.substring(1);
-    Log.d(LOG_TAG, realUri);
-    request = new BasicHttpRequest(method, realUri);
     return request;
   }
 
   private HttpResponse download(String url) {
+    return download(new HttpGet(url));
+  }
+
+  private HttpResponse download(HttpGet method) {
     DefaultHttpClient seed = new DefaultHttpClient();
     SchemeRegistry registry = new SchemeRegistry();
     registry.register(
@@ -166,7 +461,6 @@ public class StreamProxy implements Runnable {
     SingleClientConnManager mgr = new MyClientConnManager(seed.getParams(),
         registry);
     DefaultHttpClient http = new DefaultHttpClient(mgr, seed.getParams());
-    HttpGet method = new HttpGet(url);
     HttpResponse response = null;
     try {
       Log.d(LOG_TAG, "starting download");
@@ -187,14 +481,73 @@ public class StreamProxy implements Runnable {
     }
     Log.d(LOG_TAG, "processing");
     String url = request.getRequestLine().getUri();
-    HttpResponse realResponse = download(url);
+    if (url.startsWith(LIVE_PREFIX)) {
+      // live/<bytes behind live>/<url>
+      int slash = url.indexOf('/', LIVE_PREFIX.length());
+      long behind = 0;
+      try {
+        behind = Long.parseLong(url.substring(LIVE_PREFIX.length(), slash));
+      } catch (NumberFormatException e) {
+        Log.w(LOG_TAG, "Bad live offset in " + url);
+      }
+      url = url.substring(slash + 1);
+      if (timeshiftFile != null) {
+        processLiveRequest(client, url, behind);
+        return;
+      }
+    }
+    AudioCache cache = AudioCache.instance();
+    if (url.startsWith(CACHE_PREFIX)) {
+      url = url.substring(CACHE_PREFIX.length());
+      if (cache != null) {
+        AudioCache.Entry entry = cache.open(url);
+        try {
+          processCachedRequest(request, client, entry, url);
+        } finally {
+          entry.close();
+        }
+        return;
+      }
+    }
+    HttpGet method = new HttpGet(url);
+    method.addHeader(ICY_METADATA, "1");
+    HttpResponse realResponse = download(method);
     if (realResponse == null) {
       return;
     }
+    final String streamUrl = url;
+    relay(method, realResponse, client, new IcyMetadataInputStream.TitleListener() {
+      @Override
+      public void onTitle(String title) {
+        notifyTitle(streamUrl, title);
+      }
+    });
+  }
 
-    Log.d(LOG_TAG, "downloading...");
+  /**
+   * @return The content of a response, with any ICY metadata blocks
+   *         stripped out and passed to the listener
+   */
+  private InputStream demux(HttpResponse response,
+      IcyMetadataInputStream.TitleListener titles) throws IOException {
+    InputStream data = response.getEntity().getContent();
+    Header metaint = response.getFirstHeader(ICY_METAINT);
+    if (metaint == null) {
+      return data;
+    }
+    try {
+      int interval = Integer.parseInt(metaint.getValue().trim());
+      if (interval > 0) {
+        return new IcyMetadataInputStream(data, interval, titles);
+      }
+    } catch (NumberFormatException e) {
+      Log.w(LOG_TAG, "Bad " + ICY_METAINT + " " + metaint.getValue());
+    }
+    return data;
+  }
 
-    InputStream data = realResponse.getEntity().getContent();
+  private void writeHeaders(HttpResponse realResponse, SocketChannel out)
+      throws IOException {
     StatusLine line = realResponse.getStatusLine();
     HttpResponse response = new BasicHttpResponse(line);
     response.setHeaders(realResponse.getAllHeaders());
@@ -202,36 +555,792 @@ public class StreamProxy implements Runnable {
     Log.d(LOG_TAG, "reading headers");
     StringBuilder httpString = new StringBuilder();
     httpString.append(response.getStatusLine().toString());
-    
-    httpString.append("\n");
+    httpString.append("\r\n");
     for (Header h : response.getAllHeaders()) {
+      // The metadata is stripped, so the player must not look for it.
+      if (ICY_METAINT.equalsIgnoreCase(h.getName())) {
+        continue;
+      }
       httpString.append(h.getName()).append(": ").append(h.getValue()).append(
-          "\n");
+          "\r\n");
     }
-    httpString.append("\n");
+    httpString.append("\r\n");
     Log.d(LOG_TAG, "headers done");
+    writeFully(out, ByteBuffer.wrap(
+        httpString.toString().getBytes(HEADER_CHARSET)));
+  }
 
+  /**
+   * Writes what remains of a buffer to a client.
+   */
+  private static void writeFully(SocketChannel out, ByteBuffer buffer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+  }
+
+  /**
+   * Sends part of a file to a client. The kernel copies it from the file to
+   * the socket, without it passing through a buffer of ours.
+   */
+  private static void transferFully(FileChannel file, long position,
+      long count, SocketChannel out) throws IOException {
+    while (count > 0) {
+      long n = file.transferTo(position, count, out);
+      if (n <= 0) {
+        throw new IOException("Cache file truncated");
+      }
+      position += n;
+      count -= n;
+    }
+  }
+
+  /**
+   * Passes an upstream response, headers and all, on to the client. The
+   * content goes through a jitter buffer, filled by a thread of its own.
+   */
+  private void relay(final HttpGet method, HttpResponse realResponse,
+      Socket client, IcyMetadataInputStream.TitleListener titles)
+      throws IOException {
+    Log.d(LOG_TAG, "downloading...");
+
+    final ResumingInputStream data =
+        new ResumingInputStream(method, realResponse, titles);
+    final JitterBuffer jitter =
+        new JitterBuffer(JITTER_BUFFER_SIZE, newTarget(realResponse));
+    Thread filler = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        byte[] buff = new byte[RELAY_BUFFER_SIZE];
+        int readBytes;
+        try {
+          while ((readBytes = data.read(buff, 0, buff.length)) != -1) {
+            jitter.write(buff, 0, readBytes);
+          }
+        } catch (IOException e) {
+          Log.d(LOG_TAG, "Upstream ended: " + e.getMessage());
+        } catch (InterruptedException e) {
+          Log.d(LOG_TAG, "Upstream interrupted");
+        } finally {
+          jitter.close();
+          data.close();
+        }
+      }
+    }, "StreamProxy filler");
+    filler.start();
+
+    long start = System.currentTimeMillis();
+    long relayed = 0;
     try {
-      byte[] buffer = httpString.toString().getBytes();
+      SocketChannel out = client.getChannel();
       int readBytes = -1;
       Log.d(LOG_TAG, "writing to client");
-      client.getOutputStream().write(buffer, 0, buffer.length);
+      writeHeaders(realResponse, out);
 
       // Start streaming content.
-      byte[] buff = new byte[1024 * 50];
-      while (isRunning && (readBytes = data.read(buff, 0, buff.length)) != -1) {
-        client.getOutputStream().write(buff, 0, readBytes);
+      ByteBuffer buff = relayBuffer.get();
+      buff.clear();
+      while (isRunning && (readBytes = jitter.read(buff)) != -1) {
+        buff.flip();
+        writeFully(out, buff);
+        buff.clear();
+        relayed += readBytes;
+        bufferedMillis = (int) ((long) jitter.getLevel() * 1000 /
+            jitter.getTarget().getByteRate());
       }
     } catch (Exception e) {
       Log.e("", e.getMessage(), e);
     } finally {
-      if (data != null) {
-        data.close();
-      }
+      bytesRelayed.addAndGet(relayed);
+      underruns.addAndGet(jitter.getUnderruns());
+      bufferedMillis = 0;
+      long elapsed = System.currentTimeMillis() - start;
+      Log.d(LOG_TAG, "relayed " + relayed + " bytes in " + elapsed + "ms (" +
+          (elapsed > 0 ? relayed * 1000 / elapsed : relayed) + " bytes/s), " +
+          jitter.getUnderruns() + " underruns");
+      // Closing unblocks the filler if it is waiting on the network.
+      data.close();
+      jitter.close();
+      filler.interrupt();
       client.close();
     }
   }
 
+  /**
+   * @return The recording of the given live stream, or null if it is not
+   *         being recorded
+   */
+  public synchronized LiveSession getLiveSession(String url) {
+    if (liveSession != null && liveSession.url.equals(url)) {
+      return liveSession;
+    }
+    return null;
+  }
+
+  /**
+   * Stops recording the live stream, if one is being recorded.
+   */
+  public synchronized void closeLiveSession() {
+    if (liveSession != null) {
+      liveSession.close();
+      liveSession = null;
+    }
+  }
+
+  /**
+   * Finds or starts the recording of a live stream. Only one stream is
+   * recorded at a time.
+   */
+  private synchronized LiveSession openLiveSession(String url)
+      throws IOException {
+    if (liveSession != null) {
+      if (liveSession.url.equals(url) && !liveSession.isClosed()) {
+        return liveSession;
+      }
+      liveSession.close();
+      liveSession = null;
+    }
+    liveSession = new LiveSession(url,
+        new TimeshiftBuffer(timeshiftFile, TimeshiftBuffer.DEFAULT_CAPACITY));
+    new Thread(liveSession, "LiveSession").start();
+    return liveSession;
+  }
+
+  /**
+   * Serves a live stream from its recording, starting the given number of
+   * bytes behind live.
+   */
+  private void processLiveRequest(Socket client, String url, long behind)
+      throws IOException {
+    LiveSession session = openLiveSession(url);
+    HttpResponse response = session.awaitResponse();
+    if (response == null) {
+      return;
+    }
+    TimeshiftBuffer buffer = session.buffer;
+    JitterBuffer.Target target = session.target;
+    // Start at least the target behind live if that much has been recorded,
+    // so the player gets its cushion without waiting for it.
+    long position = Math.max(buffer.getOldestPosition(),
+        buffer.getWritePosition() - Math.max(behind, target.getBytes()));
+    long relayed = 0;
+    int starved = 0;
+    String title = null;
+    try {
+      SocketChannel out = client.getChannel();
+      writeHeaders(response, out);
+      ByteBuffer buff = relayBuffer.get();
+      buff.clear();
+      // The recording is the jitter buffer, with the same watermarks as
+      // JitterBuffer: the player waits for the target at the start, and for
+      // a quarter of it whenever it catches up with live.
+      int resumeLevel = target.getBytes();
+      while (isRunning) {
+        if (resumeLevel > 0) {
+          buffer.awaitWritePosition(position + resumeLevel);
+          resumeLevel = 0;
+        }
+        // A client paused for longer than the buffer holds has to skip the
+        // part that has been overwritten.
+        position = Math.max(position, buffer.getOldestPosition());
+        if (position >= buffer.getWritePosition() && !session.isClosed()) {
+          starved++;
+          resumeLevel = target.getBytes() / 4;
+          continue;
+        }
+        int count = buffer.read(position, buff);
+        if (count < 0) {
+          break;
+        }
+        buff.flip();
+        writeFully(out, buff);
+        buff.clear();
+        position += count;
+        relayed += count;
+        session.clientPosition = position;
+        bufferedMillis = (int) (session.getBytesBehindLive() * 1000 /
+            target.getByteRate());
+        String newTitle = session.getTitleAt(position);
+        if (newTitle != null && !newTitle.equals(title)) {
+          title = newTitle;
+          notifyTitle(url, title);
+        }
+      }
+    } catch (InterruptedException e) {
+      Log.d(LOG_TAG, "Live relay interrupted");
+    } catch (IOException e) {
+      // Usually MediaPlayer closing the connection.
+      Log.d(LOG_TAG, "Live relay ended: " + e.getMessage());
+    } finally {
+      bytesRelayed.addAndGet(relayed);
+      underruns.addAndGet(starved);
+      bufferedMillis = 0;
+      Log.d(LOG_TAG, "relayed " + relayed + " live bytes, " + starved +
+          " underruns");
+    }
+  }
+
+  /**
+   * Records a live stream into a timeshift buffer, independently of whoever
+   * is playing it.
+   */
+  public class LiveSession implements Runnable {
+    private final String url;
+    private final TimeshiftBuffer buffer;
+    private final HttpGet method;
+    private final CountDownLatch connected = new CountDownLatch(1);
+    // Titles in the order they arrived, each with the position at which it
+    // took effect. Titles older than the buffer are dropped.
+    private final LinkedList<TitleMark> titles = new LinkedList<TitleMark>();
+    private volatile HttpResponse response;
+    private volatile ResumingInputStream stream;
+    private volatile boolean isClosed = false;
+    private volatile long clientPosition;
+    private volatile JitterBuffer.Target target =
+        new JitterBuffer.Target(prerollMillis, maxJitterMillis);
+
+    private LiveSession(String url, TimeshiftBuffer buffer) {
+      this.url = url;
+      this.buffer = buffer;
+      this.method = new HttpGet(url);
+      method.addHeader(ICY_METADATA, "1");
+    }
+
+    @Override
+    public void run() {
+      InputStream data = null;
+      try {
+        HttpResponse r = download(method);
+        if (r == null || r.getEntity() == null) {
+          return;
+        }
+        target = newTarget(r);
+        stream = new ResumingInputStream(method, r,
+            new IcyMetadataInputStream.TitleListener() {
+              @Override
+              public void onTitle(String title) {
+                addTitle(title);
+              }
+            });
+        data = stream;
+        response = r;
+        connected.countDown();
+
+        byte[] buff = new byte[RELAY_BUFFER_SIZE];
+        int count;
+        while (!isClosed && (count = data.read(buff, 0, buff.length)) != -1) {
+          target.onArrival(count);
+          buffer.write(buff, 0, count);
+          // A player paused for longer than the buffer holds has nothing
+          // left to come back to, so there is no point recording on.
+          if (getBytesBehindLive() > buffer.getCapacity()) {
+            Log.d(LOG_TAG, "Player left behind; stopping recording " + url);
+            break;
+          }
+        }
+      } catch (IOException e) {
+        if (!isClosed) {
+          Log.e(LOG_TAG, "Error recording " + url, e);
+        }
+      } finally {
+        isClosed = true;
+        connected.countDown();
+        buffer.close();
+        if (stream != null) {
+          stream.close();
+        }
+        Log.d(LOG_TAG, "Recording ended: " + url);
+      }
+    }
+
+    private void addTitle(String title) {
+      long oldest = buffer.getOldestPosition();
+      synchronized (titles) {
+        titles.add(new TitleMark(buffer.getWritePosition(), title));
+        while (titles.size() > 1 && titles.get(1).position <= oldest) {
+          titles.removeFirst();
+        }
+      }
+    }
+
+    /**
+     * @return The title in effect at a position in the recording, or null
+     *         if none is known
+     */
+    private String getTitleAt(long position) {
+      String title = null;
+      synchronized (titles) {
+        for (TitleMark mark : titles) {
+          if (mark.position > position) {
+            break;
+          }
+          title = mark.title;
+        }
+      }
+      return title;
+    }
+
+    private HttpResponse awaitResponse() {
+      try {
+        connected.await(LIVE_CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Log.d(LOG_TAG, "Interrupted waiting for " + url);
+      }
+      return response;
+    }
+
+    private boolean isClosed() {
+      return isClosed;
+    }
+
+    private void close() {
+      isClosed = true;
+      method.abort();
+      ResumingInputStream s = stream;
+      if (s != null) {
+        s.close();
+      }
+      buffer.close();
+    }
+
+    /**
+     * @return The number of bytes recorded ahead of the last byte handed to
+     *         the player
+     */
+    public long getBytesBehindLive() {
+      return buffer.getWritePosition() - clientPosition;
+    }
+
+    /**
+     * @return The number of bytes available to rewind into, counting back
+     *         from live
+     */
+    public long getBytesAvailable() {
+      return buffer.getWritePosition() - buffer.getOldestPosition();
+    }
+
+    /**
+     * @return The stream's bitrate in bytes per second, as advertised by the
+     *         station or else as measured
+     */
+    public int getByteRate() {
+      return target.getByteRate();
+    }
+  }
+
+  private static class TitleMark {
+    private final long position;
+    private final String title;
+
+    private TitleMark(long position, String title) {
+      this.position = position;
+      this.title = title;
+    }
+  }
+
+  /**
+   * Reads from an upstream, treating a failure as the end of its data so
+   * that it can be told apart from a failure writing to the client.
+   */
+  private int readUpstream(InputStream data, byte[] buff) {
+    try {
+      return data.read(buff, 0, buff.length);
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "Upstream read failed: " + e.getMessage());
+      return -1;
+    }
+  }
+
+  /**
+   * The content of an upstream response, which reconnects if the connection
+   * drops and carries on where it left off, so the client never sees the
+   * break. Files whose length is known are resumed with a Range request;
+   * live streams are joined again at live. Anything else ends where the
+   * connection did.
+   */
+  private class ResumingInputStream extends InputStream {
+    private final String url;
+    private final IcyMetadataInputStream.TitleListener titles;
+    private final long length;
+    private final boolean isSeekable;
+    private final boolean isLive;
+    private volatile HttpGet method;
+    private InputStream data;
+    private long position = 0;
+    private int attempts = 0;
+    private volatile boolean isClosed = false;
+
+    private ResumingInputStream(HttpGet method, HttpResponse response,
+        IcyMetadataInputStream.TitleListener titles) throws IOException {
+      this.url = method.getURI().toString();
+      this.method = method;
+      this.titles = titles;
+      length = response.getEntity().getContentLength();
+      Header ranges = response.getFirstHeader("Accept-Ranges");
+      isSeekable = length > 0 && ranges != null &&
+          ranges.getValue().contains("bytes");
+      isLive = length < 0 && (response.getFirstHeader(ICY_METAINT) != null ||
+          response.getFirstHeader(ICY_BITRATE) != null ||
+          response.getFirstHeader("icy-name") != null);
+      data = demux(response, titles);
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+      while (!isClosed) {
+        IOException failure = null;
+        int read;
+        try {
+          read = data.read(buffer, offset, count);
+        } catch (IOException e) {
+          failure = e;
+          read = -1;
+        }
+        if (read >= 0) {
+          position += read;
+          attempts = 0;
+          return read;
+        }
+        if (length >= 0 && position >= length) {
+          return -1;
+        }
+        if (isClosed || !(isSeekable || isLive)) {
+          if (failure != null) {
+            throw failure;
+          }
+          return -1;
+        }
+        Log.w(LOG_TAG, "Upstream dropped at " + position + ": " +
+            (failure != null ? failure.getMessage() : "end of stream"));
+        if (!reconnect()) {
+          throw new IOException("Could not resume " + url);
+        }
+      }
+      return -1;
+    }
+
+    private boolean reconnect() {
+      HttpGet old = method;
+      old.abort();
+      long droppedAt = System.currentTimeMillis();
+      while (!isClosed && awaitReconnect(attempts++)) {
+        HttpGet retry = new HttpGet(url);
+        retry.addHeader(ICY_METADATA, "1");
+        if (isSeekable) {
+          retry.addHeader("Range", "bytes=" + position + "-");
+        }
+        method = retry;
+        if (isClosed) {
+          break;
+        }
+        HttpResponse response = download(retry);
+        if (response == null || response.getEntity() == null) {
+          continue;
+        }
+        int status = response.getStatusLine().getStatusCode();
+        try {
+          InputStream resumed = demux(response, titles);
+          if (isSeekable && status == HttpStatus.SC_OK) {
+            // The server ignored the Range; skip what we already have.
+            long skip = position;
+            while (skip > 0) {
+              long skipped = resumed.skip(skip);
+              if (skipped <= 0) {
+                throw new IOException("Could not skip to " + position);
+              }
+              skip -= skipped;
+            }
+          } else if (status != HttpStatus.SC_OK &&
+              status != HttpStatus.SC_PARTIAL_CONTENT) {
+            throw new IOException("Upstream returned " +
+                response.getStatusLine());
+          }
+          data = resumed;
+          recordReconnect(System.currentTimeMillis() - droppedAt);
+          return true;
+        } catch (IOException e) {
+          Log.w(LOG_TAG, "Resume failed: " + e.getMessage());
+          retry.abort();
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public void close() {
+      isClosed = true;
+      method.abort();
+    }
+  }
+
+  /**
+   * An upstream response for part of a cached file.
+   */
+  private static class Upstream {
+    private final HttpGet method;
+    private final InputStream data;
+    // The offset in the file of the first byte of data.
+    private final long offset;
+
+    private Upstream(HttpGet method, InputStream data, long offset) {
+      this.method = method;
+      this.data = data;
+      this.offset = offset;
+    }
+
+    /**
+     * Closes the response without reading the rest of it, which would
+     * otherwise download bytes we may already have.
+     */
+    private void abort() {
+      method.abort();
+      HttpTransport.close(data);
+    }
+  }
+
+  /**
+   * Requests part of a file from upstream, learning its length and type if
+   * they are not yet known.
+   *
+   * @param from The first byte wanted
+   * @param to The last byte wanted, or -1 for the rest of the file
+   * @return The response, or null on failure
+   */
+  private Upstream openUpstream(AudioCache.Entry entry, String url, long from,
+      long to) {
+    HttpGet method = new HttpGet(url);
+    if (from > 0 || to >= 0) {
+      method.addHeader("Range", "bytes=" + from + "-" + (to >= 0 ? to : ""));
+    }
+    try {
+      HttpResponse response = HttpTransport.execute(method);
+      int status = response.getStatusLine().getStatusCode();
+      if ((status != HttpStatus.SC_OK &&
+          status != HttpStatus.SC_PARTIAL_CONTENT) ||
+          response.getEntity() == null) {
+        Log.w(LOG_TAG, "Upstream returned " + response.getStatusLine());
+        method.abort();
+        return null;
+      }
+      long offset = 0;
+      long length = -1;
+      if (status == HttpStatus.SC_PARTIAL_CONTENT) {
+        // Content-Range: bytes 100-199/1000
+        Header range = response.getFirstHeader("Content-Range");
+        if (range != null) {
+          String value = range.getValue();
+          int dash = value.indexOf('-');
+          int slash = value.indexOf('/');
+          offset = Long.parseLong(value.substring(value.indexOf(' ') + 1,
+              dash).trim());
+          String total = value.substring(slash + 1).trim();
+          if (!total.equals("*")) {
+            length = Long.parseLong(total);
+          }
+        }
+      } else {
+        length = response.getEntity().getContentLength();
+      }
+      Header type = response.getFirstHeader("Content-Type");
+      if (length >= 0 && length != entry.getLength()) {
+        entry.setInfo(length, type != null ? type.getValue() : "audio/mpeg");
+      }
+      return new Upstream(method, response.getEntity().getContent(), offset);
+    } catch (ClientProtocolException e) {
+      Log.e(LOG_TAG, "Error downloading", e);
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Error downloading", e);
+    } catch (NumberFormatException e) {
+      Log.e(LOG_TAG, "Bad Content-Range", e);
+    }
+    method.abort();
+    return null;
+  }
+
+  /**
+   * Serves a request for an on-demand file through the audio cache. Cached
+   * bytes are read from disk, and only the ranges we do not have are fetched
+   * from upstream, being written to the cache as they pass through.
+   */
+  private void processCachedRequest(HttpRequest request, Socket client,
+      AudioCache.Entry entry, String url) throws IOException {
+    // Only the single range forms MediaPlayer sends: bytes=S- and bytes=S-E.
+    long rangeStart = -1;
+    long rangeEnd = -1;
+    Header rangeHeader = request.getFirstHeader("Range");
+    if (rangeHeader != null && rangeHeader.getValue().startsWith("bytes=")) {
+      String range = rangeHeader.getValue().substring(6);
+      int dash = range.indexOf('-');
+      try {
+        if (dash > 0) {
+          rangeStart = Long.parseLong(range.substring(0, dash).trim());
+          if (dash < range.length() - 1) {
+            rangeEnd = Long.parseLong(range.substring(dash + 1).trim());
+          }
+        }
+      } catch (NumberFormatException e) {
+        Log.w(LOG_TAG, "Ignoring range " + range);
+        rangeStart = -1;
+        rangeEnd = -1;
+      }
+    }
+
+    Upstream upstream = null;
+    if (entry.getLength() < 0) {
+      upstream = openUpstream(entry, url, Math.max(rangeStart, 0), -1);
+      if (upstream == null) {
+        return;
+      }
+    }
+    long length = entry.getLength();
+    if (!entry.isCacheable()) {
+      // No length means no way to place the bytes, and a file larger than
+      // the cache would evict itself, so don't cache them. The player's
+      // range goes upstream, so it can still seek.
+      Log.w(LOG_TAG, "Length " + length + "; not caching " + url);
+      if (upstream != null) {
+        upstream.abort();
+      }
+      HttpGet method = new HttpGet(url);
+      if (rangeHeader != null) {
+        method.addHeader(rangeHeader);
+      }
+      HttpResponse response = HttpTransport.execute(method);
+      relay(method, response, client, null);
+      return;
+    }
+
+    long start = rangeStart >= 0 ? rangeStart : 0;
+    long end = rangeEnd >= 0 && rangeEnd < length ? rangeEnd : length - 1;
+    StringBuilder headers = new StringBuilder();
+    if (rangeStart >= 0) {
+      if (start >= length) {
+        headers.append("HTTP/1.1 416 Requested Range Not Satisfiable\r\n");
+        headers.append("Content-Range: bytes */").append(length).append("\r\n");
+        headers.append("\r\n");
+        writeFully(client.getChannel(), ByteBuffer.wrap(
+            headers.toString().getBytes(HEADER_CHARSET)));
+        if (upstream != null) {
+          upstream.abort();
+        }
+        return;
+      }
+      headers.append("HTTP/1.1 206 Partial Content\r\n");
+      headers.append("Content-Range: bytes ").append(start).append("-")
+          .append(end).append("/").append(length).append("\r\n");
+    } else {
+      headers.append("HTTP/1.1 200 OK\r\n");
+    }
+    headers.append("Content-Type: ").append(entry.getContentType())
+        .append("\r\n");
+    headers.append("Content-Length: ").append(end - start + 1).append("\r\n");
+    headers.append("Accept-Ranges: bytes\r\n");
+    headers.append("Connection: close\r\n");
+    headers.append("\r\n");
+
+    RandomAccessFile file = null;
+    long fromCache = 0;
+    long fromUpstream = 0;
+    try {
+      SocketChannel out = client.getChannel();
+      writeFully(out, ByteBuffer.wrap(
+          headers.toString().getBytes(HEADER_CHARSET)));
+      file = new RandomAccessFile(entry.getDataFile(), "rw");
+      FileChannel channel = file.getChannel();
+      byte[] buff = upstreamBuffer.get();
+      long position = start;
+      // When the upstream dropped, and how many attempts to resume it have
+      // failed since.
+      long droppedAt = 0;
+      int attempts = 0;
+      while (isRunning && position <= end) {
+        long cachedEnd = Math.min(entry.getCachedEnd(position), end + 1);
+        if (cachedEnd > position) {
+          // Serve what we have from disk.
+          if (upstream != null) {
+            upstream.abort();
+            upstream = null;
+          }
+          transferFully(channel, position, cachedEnd - position, out);
+          fromCache += cachedEnd - position;
+          position = cachedEnd;
+          continue;
+        }
+
+        // Fetch up to the next range we have, or the end of the request.
+        long gapEnd = Math.min(entry.getNextCachedStart(position), end + 1);
+        if (upstream == null) {
+          upstream = openUpstream(entry, url, position, gapEnd - 1);
+          if (upstream == null) {
+            if (droppedAt > 0 && awaitReconnect(attempts++)) {
+              continue;
+            }
+            break;
+          }
+          if (droppedAt > 0) {
+            recordReconnect(System.currentTimeMillis() - droppedAt);
+            droppedAt = 0;
+          }
+        }
+        long offset = upstream.offset;
+        int count;
+        while (offset < gapEnd &&
+            (count = readUpstream(upstream.data, buff)) != -1) {
+          attempts = 0;
+          file.seek(offset);
+          file.write(buff, 0, count);
+          entry.addRange(offset, offset + count);
+          // The upstream may have started before the position we need, if
+          // it ignored our Range header.
+          long sendFrom = Math.max(offset, position);
+          long sendTo = Math.min(offset + count, gapEnd);
+          if (sendTo > sendFrom) {
+            // Sent on from the cache file, where it has just been written.
+            transferFully(channel, sendFrom, sendTo - sendFrom, out);
+            position = sendTo;
+          }
+          offset += count;
+          fromUpstream += count;
+        }
+        upstream.abort();
+        upstream = null;
+        if (position < gapEnd) {
+          // Keep the client waiting while we fetch the rest from where the
+          // upstream dropped.
+          Log.w(LOG_TAG, "Upstream ended early at " + position);
+          if (droppedAt == 0) {
+            droppedAt = System.currentTimeMillis();
+          }
+          if (!awaitReconnect(attempts++)) {
+            break;
+          }
+        }
+      }
+    } catch (IOException e) {
+      // Usually MediaPlayer closing the connection to seek elsewhere.
+      Log.d(LOG_TAG, "Cached relay ended: " + e.getMessage());
+    } finally {
+      if (upstream != null) {
+        upstream.abort();
+      }
+      if (file != null) {
+        file.close();
+      }
+      entry.save();
+      bytesRelayed.addAndGet(fromCache + fromUpstream);
+      Log.d(LOG_TAG, "served " + url + " " + start + "-" + end + ": " +
+          fromCache + " bytes from cache, " + fromUpstream +
+          " from upstream");
+    }
+  }
+
   private class IcyLineParser extends BasicLineParser {
     private static final String ICY_PROTOCOL_NAME = "ICY";
     private IcyLineParser() {
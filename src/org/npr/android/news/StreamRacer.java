@@ -0,0 +1,333 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package org.npr.android.news;
+
+import android.os.Handler;
+import android.util.Log;
+
+import org.npr.android.util.LruCache;
+import org.npr.android.util.M3uParser;
+import org.npr.android.util.PlaylistParser;
+import org.npr.android.util.PlsParser;
+import org.npr.api.HttpTransport;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Finds which of a station's streams starts fastest, by connecting to all
+ * of them at once and seeing which sends audio first. The rest are dropped
+ * as soon as there is a winner, and the winner is remembered, so the next
+ * race for the station gives it a head start over the others.
+ * <p>
+ * Playlist files are resolved first, and the race run on their first
+ * entries. The whole playlist is put in the {@link PlaylistCache}, so
+ * playing the winner does not download it again.
+ */
+public class StreamRacer {
+  private static final String LOG_TAG = StreamRacer.class.getName();
+  public static final int DEFAULT_BUDGET_MILLIS = 5000;
+  // How long the last winner gets to itself before the others start.
+  private static final int HEAD_START_MILLIS = 750;
+  private static final int MAX_REDIRECTS = 3;
+  private static final int MAX_STATIONS = 64;
+
+  private static StreamRacer instance;
+
+  private final LruCache<String, String> winners =
+      new LruCache<String, String>(MAX_STATIONS);
+  private final ExecutorService executor =
+      Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "StreamRacer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  public static synchronized StreamRacer instance() {
+    if (instance == null) {
+      instance = new StreamRacer();
+    }
+    return instance;
+  }
+
+  /**
+   * @return The URL that won the last race for the station, or null
+   */
+  public String getWinner(String stationId) {
+    return winners.get(stationId);
+  }
+
+  /**
+   * Races the streams in the background, and sends the winning URL to a
+   * handler, as the obj of a message with the given what. The obj is null
+   * if none of them sent audio within the budget.
+   */
+  public Future<?> race(final String stationId, final List<String> urls,
+      final Handler handler, final int what) {
+    return executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        String winner = null;
+        try {
+          winner = race(stationId, urls, DEFAULT_BUDGET_MILLIS);
+        } catch (InterruptedException e) {
+          return;
+        }
+        handler.sendMessage(handler.obtainMessage(what, winner));
+      }
+    });
+  }
+
+  /**
+   * Races the streams, blocking until one sends audio or the budget runs
+   * out.
+   *
+   * @return The URL, from those given, whose stream sent audio first, or
+   *         null if none did
+   * @throws InterruptedException If interrupted while waiting
+   */
+  public String race(String stationId, List<String> urls, int budgetMillis)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + budgetMillis;
+    String last = winners.get(stationId);
+    boolean hasHeadStart = last != null && urls.contains(last) &&
+        urls.size() > 1;
+
+    CountDownLatch won = new CountDownLatch(1);
+    CountDownLatch finished = new CountDownLatch(1);
+    AtomicReference<String> winner = new AtomicReference<String>();
+    List<Runner> runners = new ArrayList<Runner>();
+    for (String url : urls) {
+      int delay = hasHeadStart && !url.equals(last) ? HEAD_START_MILLIS : 0;
+      Runner runner = new Runner(url, delay, deadline, won, finished, winner);
+      runners.add(runner);
+      executor.execute(runner);
+    }
+    long start = System.currentTimeMillis();
+    try {
+      won.await(budgetMillis, TimeUnit.MILLISECONDS);
+    } finally {
+      finished.countDown();
+      for (Runner runner : runners) {
+        runner.cancel();
+      }
+    }
+
+    String url = winner.get();
+    if (url != null) {
+      Log.d(LOG_TAG, "Stream " + url + " won for " + stationId + " in " +
+          (System.currentTimeMillis() - start) + "ms");
+      winners.put(stationId, url);
+    } else {
+      Log.w(LOG_TAG, "No stream for " + stationId + " within " +
+          budgetMillis + "ms");
+    }
+    return url;
+  }
+
+  /**
+   * Connects to one stream, and claims the win if it is first to send
+   * audio.
+   */
+  private static class Runner implements Runnable {
+    private final String url;
+    private final int delay;
+    private final long deadline;
+    private final CountDownLatch won;
+    private final CountDownLatch finished;
+    private final AtomicReference<String> winner;
+    private volatile Socket socket;
+    private volatile boolean isCancelled = false;
+
+    Runner(String url, int delay, long deadline, CountDownLatch won,
+        CountDownLatch finished, AtomicReference<String> winner) {
+      this.url = url;
+      this.delay = delay;
+      this.deadline = deadline;
+      this.won = won;
+      this.finished = finished;
+      this.winner = winner;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (delay > 0 && finished.await(delay, TimeUnit.MILLISECONDS)) {
+          return;
+        }
+        String streamUrl = url;
+        if (isPlaylist(url)) {
+          streamUrl = resolvePlaylist(url);
+          if (streamUrl == null) {
+            return;
+          }
+        }
+        for (int i = 0; i <= MAX_REDIRECTS && streamUrl != null; i++) {
+          streamUrl = connect(streamUrl);
+        }
+      } catch (InterruptedException e) {
+        // Over.
+      } catch (IOException e) {
+        if (!isCancelled) {
+          Log.d(LOG_TAG, url + ": " + e);
+        }
+      } finally {
+        close();
+      }
+    }
+
+    /**
+     * Requests the stream, and waits for the first byte of audio.
+     *
+     * @return The URL it redirects to, or null if it is done with
+     */
+    private String connect(String streamUrl) throws IOException {
+      URL u = new URL(streamUrl);
+      int port = u.getPort() == -1 ? 80 : u.getPort();
+      String path = u.getFile().length() == 0 ? "/" : u.getFile();
+      Socket s = new Socket();
+      socket = s;
+      if (isCancelled) {
+        return null;
+      }
+      s.connect(new InetSocketAddress(u.getHost(), port), remaining());
+      s.setSoTimeout(remaining());
+      OutputStream out = s.getOutputStream();
+      out.write(("GET " + path + " HTTP/1.0\r\nHost: " + u.getHost() +
+          "\r\nConnection: close\r\n\r\n").getBytes());
+      out.flush();
+
+      InputStream in = new BufferedInputStream(s.getInputStream(), 1024);
+      String status = readLine(in);
+      if (status == null) {
+        return null;
+      }
+      // Shoutcast servers answer "ICY 200 OK".
+      String[] parts = status.split(" ");
+      int code = 0;
+      try {
+        code = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+      } catch (NumberFormatException e) {
+        Log.w(LOG_TAG, "Bad status line: " + status);
+      }
+      String location = null;
+      String line;
+      while ((line = readLine(in)) != null && line.length() > 0) {
+        if (line.toLowerCase().startsWith("location:")) {
+          location = line.substring("location:".length()).trim();
+        }
+      }
+      if (code >= 300 && code < 400 && location != null) {
+        close();
+        return location;
+      }
+      if (code < 200 || code >= 300 || line == null || in.read() == -1) {
+        return null;
+      }
+      if (winner.compareAndSet(null, url)) {
+        won.countDown();
+      }
+      return null;
+    }
+
+    private int remaining() throws IOException {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        throw new IOException("Out of time");
+      }
+      return (int) remaining;
+    }
+
+    /**
+     * Reads the playlist, caches it, and returns its first entry.
+     */
+    private String resolvePlaylist(String playlistUrl) throws IOException {
+      List<String> cached = PlaylistCache.instance().get(playlistUrl);
+      if (cached != null) {
+        return cached.get(0);
+      }
+      InputStream stream = HttpTransport.open(playlistUrl);
+      if (stream == null) {
+        return null;
+      }
+      List<String> entries = new ArrayList<String>();
+      try {
+        PlaylistParser parser = playlistUrl.indexOf("m3u") > -1 ?
+            new M3uParser(stream) : new PlsParser(stream);
+        String entry;
+        while ((entry = parser.nextUrl()) != null) {
+          entries.add(entry);
+        }
+      } finally {
+        HttpTransport.close(stream);
+      }
+      PlaylistCache.instance().put(playlistUrl, entries);
+      return entries.isEmpty() ? null : entries.get(0);
+    }
+
+    void cancel() {
+      isCancelled = true;
+      close();
+    }
+
+    private void close() {
+      Socket s = socket;
+      if (s != null) {
+        try {
+          s.close();
+        } catch (IOException e) {
+          // Ignore
+        }
+      }
+    }
+  }
+
+  private static boolean isPlaylist(String url) {
+    return url.indexOf("m3u") > -1 || url.indexOf("pls") > -1;
+  }
+
+  /**
+   * @return A header line without its line ending, or null at the end of
+   *         the stream
+   */
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = in.read()) != -1 && c != '\n') {
+      if (c != '\r') {
+        line.append((char) c);
+      }
+    }
+    return c == -1 && line.length() == 0 ? null : line.toString();
+  }
+}
@@ -0,0 +1,146 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.news;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A fixed-size ring of the most recent bytes of a live stream, kept in a
+ * memory-mapped file. One thread writes the stream in as it arrives; any
+ * number of readers read from positions of their choosing, which lets a
+ * listener pause or rewind without the upstream connection being dropped.
+ * <p>
+ * Positions are absolute byte counts since the start of the recording. Only
+ * the last {@link #getCapacity()} bytes are available; readers that fall
+ * further behind than that must skip ahead to {@link #getOldestPosition()}.
+ */
+public class TimeshiftBuffer {
+  // 30 minutes at 128kbps.
+  public static final int DEFAULT_CAPACITY = 30 * 60 * 128 * 1000 / 8;
+
+  private final int capacity;
+  private final RandomAccessFile file;
+  private final MappedByteBuffer map;
+  private long writePosition = 0;
+  private boolean isClosed = false;
+
+  public TimeshiftBuffer(File path, int capacity) throws IOException {
+    this.capacity = capacity;
+    file = new RandomAccessFile(path, "rw");
+    file.setLength(capacity);
+    map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return The position one past the newest byte written
+   */
+  public synchronized long getWritePosition() {
+    return writePosition;
+  }
+
+  /**
+   * @return The position of the oldest byte still in the buffer
+   */
+  public synchronized long getOldestPosition() {
+    return Math.max(0, writePosition - capacity);
+  }
+
+  /**
+   * Appends bytes to the buffer, overwriting the oldest if it is full.
+   */
+  public synchronized void write(byte[] buffer, int offset, int count) {
+    if (isClosed) {
+      return;
+    }
+    while (count > 0) {
+      int index = (int) (writePosition % capacity);
+      int n = Math.min(count, capacity - index);
+      map.position(index);
+      map.put(buffer, offset, n);
+      offset += n;
+      count -= n;
+      writePosition += n;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Reads bytes from the given position, as many as there is room for in
+   * the buffer, waiting for them to be written if necessary.
+   *
+   * @return The number of bytes read; 0 if the position is no longer in the
+   *         buffer (skip ahead to {@link #getOldestPosition()} and try again);
+   *         or -1 if the buffer has been closed and no more bytes will come
+   * @throws InterruptedException If interrupted while waiting
+   */
+  public synchronized int read(long position, ByteBuffer buffer)
+      throws InterruptedException {
+    while (position >= writePosition && !isClosed) {
+      wait();
+    }
+    if (position >= writePosition) {
+      return -1;
+    }
+    if (position < writePosition - capacity) {
+      return 0;
+    }
+    int index = (int) (position % capacity);
+    int n = (int) Math.min(Math.min(buffer.remaining(), capacity - index),
+        writePosition - position);
+    // Copied straight from the mapping, without a view being made.
+    map.limit(index + n);
+    map.position(index);
+    buffer.put(map);
+    map.limit(capacity);
+    return n;
+  }
+
+  /**
+   * Waits until the buffer has been written up to a position, or closed.
+   *
+   * @throws InterruptedException If interrupted while waiting
+   */
+  public synchronized void awaitWritePosition(long position)
+      throws InterruptedException {
+    while (writePosition < position && !isClosed) {
+      wait();
+    }
+  }
+
+  /**
+   * Stops recording. Readers get what is left, then end of stream.
+   */
+  public synchronized void close() {
+    if (isClosed) {
+      return;
+    }
+    isClosed = true;
+    notifyAll();
+    try {
+      file.close();
+    } catch (IOException e) {
+      // Ignore
+    }
+  }
+}
@@ -0,0 +1,83 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.util;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Loads values by key such that concurrent requests for the same key share a
+ * single load. The first caller for a key runs {@link #load(Object)} on its
+ * own thread; anyone else asking for that key in the meantime waits for the
+ * same result instead of starting a second download.
+ */
+public abstract class CoalescingLoader<K, V> {
+  private static final String LOG_TAG = CoalescingLoader.class.getName();
+
+  private final Map<K, FutureTask<V>> inFlight =
+      new HashMap<K, FutureTask<V>>();
+
+  /**
+   * Loads the value for a key. Called on the thread of the first caller of
+   * {@link #get(Object)} for the key.
+   *
+   * @return The value, or null if it could not be loaded
+   */
+  protected abstract V load(K key);
+
+  /**
+   * @return The value for the key, or null if it could not be loaded or the
+   *         calling thread was interrupted while waiting
+   */
+  public V get(final K key) {
+    FutureTask<V> task;
+    boolean owner = false;
+    synchronized (inFlight) {
+      task = inFlight.get(key);
+      if (task == null) {
+        task = new FutureTask<V>(new Callable<V>() {
+          @Override
+          public V call() {
+            return load(key);
+          }
+        });
+        inFlight.put(key, task);
+        owner = true;
+      }
+    }
+    if (owner) {
+      try {
+        task.run();
+      } finally {
+        synchronized (inFlight) {
+          inFlight.remove(key);
+        }
+      }
+    }
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      Log.e(LOG_TAG, "", e);
+    }
+    return null;
+  }
+}
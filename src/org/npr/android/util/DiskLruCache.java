@@ -0,0 +1,241 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.util;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A directory of files bounded by total size. When the directory grows past
+ * its limit, the least recently used files are deleted.
+ * <p>
+ * Files are written to a temporary file obtained from
+ * {@link #newTempFile()} and then moved into place with
+ * {@link #commit(String, File)}, so readers never see a partially written
+ * file. Files being written in place can be pinned with {@link #pin(String)}
+ * so that they are not deleted from under the writer.
+ */
+public class DiskLruCache {
+  private static final String LOG_TAG = DiskLruCache.class.getName();
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private final File directory;
+  private final long maxSize;
+  private long size = 0;
+  private int tempCounter = 0;
+  // File name to file length, in access order.
+  private final LinkedHashMap<String, Long> entries =
+      new LinkedHashMap<String, Long>(0, 0.75f, true);
+  // File name to the number of pins on it.
+  private final Map<String, Integer> pins = new HashMap<String, Integer>();
+
+  /**
+   * Opens the cache in the given directory, picking up any files left from a
+   * previous run. Their last modified time stands in for their last access.
+   *
+   * @param directory The directory to keep the files in; created if needed
+   * @param maxSize The maximum total size of the files, in bytes
+   */
+  public DiskLruCache(File directory, long maxSize) {
+    this.directory = directory;
+    this.maxSize = maxSize;
+    if (!directory.exists() && !directory.mkdirs()) {
+      Log.w(LOG_TAG, "Could not create cache directory " + directory);
+    }
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        long diff = a.lastModified() - b.lastModified();
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+      }
+    });
+    for (File file : files) {
+      if (file.getName().endsWith(TEMP_SUFFIX)) {
+        file.delete();
+      } else if (file.isFile()) {
+        entries.put(file.getName(), file.length());
+        size += file.length();
+      }
+    }
+    trimToSize();
+  }
+
+  /**
+   * @param name The name of the file
+   * @return The file, or null if it is not in the cache
+   */
+  public synchronized File get(String name) {
+    if (entries.get(name) == null) {
+      return null;
+    }
+    File file = new File(directory, name);
+    if (!file.exists()) {
+      remove(name);
+      return null;
+    }
+    return file;
+  }
+
+  /**
+   * @return A new, empty file in the cache directory that will be ignored
+   *         until it is committed
+   */
+  public synchronized File newTempFile() {
+    return new File(directory, System.currentTimeMillis() + "-" +
+        (tempCounter++) + TEMP_SUFFIX);
+  }
+
+  /**
+   * Moves a temporary file into the cache under the given name, replacing
+   * any file already there.
+   *
+   * @return true if the file was committed
+   */
+  public synchronized boolean commit(String name, File temp) {
+    File file = new File(directory, name);
+    removeEntry(name);
+    file.delete();
+    if (!temp.renameTo(file)) {
+      Log.w(LOG_TAG, "Could not commit " + name);
+      temp.delete();
+      return false;
+    }
+    entries.put(name, file.length());
+    size += file.length();
+    trimToSize();
+    return true;
+  }
+
+  /**
+   * @return The file for a name, whether or not it is in the cache, for
+   *         callers that write files in place; see {@link #update(String)}
+   */
+  public File getFile(String name) {
+    return new File(directory, name);
+  }
+
+  /**
+   * Records the current size of a file that has been written in place,
+   * rather than through {@link #commit(String, File)}, and marks it as the
+   * most recently used.
+   */
+  public synchronized void update(String name) {
+    File file = new File(directory, name);
+    removeEntry(name);
+    if (file.exists()) {
+      entries.put(name, file.length());
+      size += file.length();
+      trimToSize();
+    }
+  }
+
+  /**
+   * Keeps a file from being evicted until it is unpinned as many times as
+   * it has been pinned. The cache may grow past its limit meanwhile.
+   */
+  public synchronized void pin(String name) {
+    Integer count = pins.get(name);
+    pins.put(name, count == null ? 1 : count + 1);
+  }
+
+  public synchronized void unpin(String name) {
+    Integer count = pins.get(name);
+    if (count == null) {
+      return;
+    }
+    if (count > 1) {
+      pins.put(name, count - 1);
+    } else {
+      pins.remove(name);
+      trimToSize();
+    }
+  }
+
+  /**
+   * @return The most the files in the cache may add up to, in bytes
+   */
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  public synchronized void remove(String name) {
+    removeEntry(name);
+    new File(directory, name).delete();
+  }
+
+  /**
+   * @return The total size of the files in the cache, in bytes
+   */
+  public synchronized long size() {
+    return size;
+  }
+
+  private void removeEntry(String name) {
+    Long length = entries.remove(name);
+    if (length != null) {
+      size -= length;
+    }
+  }
+
+  private void trimToSize() {
+    Iterator<Entry<String, Long>> i = entries.entrySet().iterator();
+    while (size > maxSize && i.hasNext()) {
+      Entry<String, Long> eldest = i.next();
+      if (pins.containsKey(eldest.getKey())) {
+        continue;
+      }
+      new File(directory, eldest.getKey()).delete();
+      size -= eldest.getValue();
+      i.remove();
+    }
+  }
+
+  /**
+   * Turns an arbitrary key, such as a URL, into a string that is safe to use
+   * as a file name.
+   */
+  public static String hashKey(String key) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      byte[] bytes = digest.digest(key.getBytes("UTF-8"));
+      StringBuilder hex = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+        hex.append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      Log.e(LOG_TAG, "", e);
+    } catch (UnsupportedEncodingException e) {
+      Log.e(LOG_TAG, "", e);
+    }
+    return String.valueOf(key.hashCode());
+  }
+}
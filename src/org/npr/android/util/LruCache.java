@@ -0,0 +1,125 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A thread-safe in-memory cache bounded by total size. Each entry's size is
+ * given by {@link #sizeOf(Object, Object)}, which defaults to 1 so that the
+ * limit is a count of entries; subclasses can override it to weigh entries
+ * by their approximate memory use instead. When the cache is over its limit,
+ * the least recently used entries are dropped.
+ */
+public class LruCache<K, V> {
+  private final LinkedHashMap<K, V> map =
+      new LinkedHashMap<K, V>(0, 0.75f, true);
+  private final int maxSize;
+  private int size = 0;
+
+  public LruCache(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @return The value for the key, or null if there is none. The entry
+   *         becomes the most recently used.
+   */
+  public synchronized V get(K key) {
+    return map.get(key);
+  }
+
+  /**
+   * Caches the value for the key, replacing any previous value.
+   *
+   * @return The previous value, or null
+   */
+  public synchronized V put(K key, V value) {
+    if (key == null || value == null) {
+      throw new NullPointerException("key == null || value == null");
+    }
+    size += sizeOf(key, value);
+    V previous = map.put(key, value);
+    if (previous != null) {
+      size -= sizeOf(key, previous);
+    }
+    trimToSize(maxSize);
+    return previous;
+  }
+
+  public synchronized void putAll(Map<K, V> values) {
+    for (Entry<K, V> e : values.entrySet()) {
+      put(e.getKey(), e.getValue());
+    }
+  }
+
+  public synchronized V remove(K key) {
+    V previous = map.remove(key);
+    if (previous != null) {
+      size -= sizeOf(key, previous);
+    }
+    return previous;
+  }
+
+  /**
+   * Drops the least recently used entries until the cache is no bigger than
+   * the given size.
+   */
+  public synchronized void trimToSize(int targetSize) {
+    Iterator<Entry<K, V>> i = map.entrySet().iterator();
+    while (size > targetSize && i.hasNext()) {
+      Entry<K, V> eldest = i.next();
+      size -= sizeOf(eldest.getKey(), eldest.getValue());
+      i.remove();
+      entryEvicted(eldest.getKey(), eldest.getValue());
+    }
+  }
+
+  public synchronized void evictAll() {
+    trimToSize(-1);
+  }
+
+  /**
+   * @return The total size of the entries in the cache
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  public int maxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Returns the size of an entry, in whatever units the cache's maximum size
+   * is given in. The size of an entry must not change while it is cached.
+   */
+  protected int sizeOf(K key, V value) {
+    return 1;
+  }
+
+  /**
+   * Called, with the cache's lock held, when an entry is dropped to make
+   * room. The default does nothing.
+   */
+  protected void entryEvicted(K key, V value) {
+  }
+}
@@ -16,36 +16,27 @@ package org.npr.android.util;
 
 
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 
 public class M3uParser implements PlaylistParser {
   private final BufferedReader reader;
 
-  public M3uParser(File file) throws FileNotFoundException {
-    this.reader = new BufferedReader(new FileReader(file), 1024);
+  public M3uParser(InputStream stream) {
+    this.reader = new BufferedReader(new InputStreamReader(stream), 1024);
   }
 
   @Override
-  public List<String> getUrls() {
-    LinkedList<String> urls = new LinkedList<String>();
+  public String nextUrl() throws IOException {
     while (true) {
-      try {
-        String url = reader.readLine();
-        if (url == null) {
-          break;
-        } else if (isUrl(url)) {
-          urls.add(url);
-        }
-      } catch (IOException e) {
-        e.printStackTrace();
+      String url = reader.readLine();
+      if (url == null) {
+        return null;
+      } else if (isUrl(url)) {
+        return url.trim();
       }
     }
-    return urls;
   }
 
   public boolean isUrl(String url) {
@@ -19,16 +19,16 @@ public class PlaylistEntry {
   public final String url;
   public final String title;
   public final boolean isStream;
-  public int order;
+  public long order;
   public final String storyID;
 
   public PlaylistEntry(long id, String url, String title, boolean isStream,
-      int order) {
+      long order) {
     this(id, url, title, isStream, order, null);
   }
 
   public PlaylistEntry(long id, String url, String title, boolean isStream,
-      int order, String storyID) {
+      long order, String storyID) {
     this.id = id;
     this.url = url;
     this.title = title;
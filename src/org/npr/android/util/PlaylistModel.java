@@ -0,0 +1,229 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package org.npr.android.util;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.util.Log;
+
+import org.npr.android.util.PlaylistProvider.Items;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * The unread part of the playlist, held in memory in play order, so that the
+ * player can find what comes before or after an entry without querying the
+ * database. It is reloaded, the next time it is used, when the playlist is
+ * changed under it. Entries marked read leave the model straight away, and
+ * are written back to the database in batches.
+ * <p>
+ * A model is not thread-safe. It must be used on the thread of the handler
+ * it is given, which is where change notifications are delivered.
+ */
+public class PlaylistModel {
+  private static final String LOG_TAG = PlaylistModel.class.getName();
+  // How long a read mark waits to be written, so that marks made close
+  // together are written together.
+  private static final int FLUSH_DELAY = 2000;
+
+  /**
+   * Orders entries by play order, and by id where play orders are the same.
+   */
+  public static final Comparator<PlaylistEntry> PLAY_ORDER =
+      new Comparator<PlaylistEntry>() {
+        @Override
+        public int compare(PlaylistEntry a, PlaylistEntry b) {
+          if (a.order != b.order) {
+            return a.order < b.order ? -1 : 1;
+          }
+          return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+        }
+      };
+
+  private final ContentResolver resolver;
+  private final Handler handler;
+  private final ContentObserver observer;
+  private final TreeSet<PlaylistEntry> unread =
+      new TreeSet<PlaylistEntry>(PLAY_ORDER);
+  private final Map<Long, PlaylistEntry> byId =
+      new HashMap<Long, PlaylistEntry>();
+  private final List<Long> pendingReads = new ArrayList<Long>();
+  private boolean isLoaded = false;
+  // Notifications still to come of our own writes, which need no reload.
+  private int ownChanges = 0;
+  private final Runnable flush = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  public PlaylistModel(ContentResolver resolver, Handler handler) {
+    this.resolver = resolver;
+    this.handler = handler;
+    observer = new ContentObserver(handler) {
+      @Override
+      public void onChange(boolean selfChange) {
+        if (ownChanges > 0) {
+          ownChanges--;
+        } else {
+          isLoaded = false;
+        }
+      }
+    };
+    resolver.registerContentObserver(PlaylistProvider.CONTENT_URI, true,
+        observer);
+  }
+
+  /**
+   * Writes any read marks still waiting, and stops watching the database.
+   */
+  public void close() {
+    flush();
+    resolver.unregisterContentObserver(observer);
+  }
+
+  /**
+   * @return The first unread entry after the given one in play order, or
+   *         the first unread entry if the given one is null. Null if there
+   *         is none.
+   */
+  public PlaylistEntry getNext(PlaylistEntry current) {
+    ensureLoaded();
+    SortedSet<PlaylistEntry> after = current == null ? unread :
+        unread.tailSet(probe(current.order, current.id + 1));
+    return after.isEmpty() ? null : after.first();
+  }
+
+  /**
+   * @return The last unread entry before the given one in play order, or
+   *         null if there is none
+   */
+  public PlaylistEntry getPrevious(PlaylistEntry current) {
+    ensureLoaded();
+    SortedSet<PlaylistEntry> before =
+        unread.headSet(probe(current.order, current.id));
+    return before.isEmpty() ? null : before.last();
+  }
+
+  /**
+   * @return The number of unread entries
+   */
+  public int size() {
+    ensureLoaded();
+    return unread.size();
+  }
+
+  /**
+   * Marks an entry read. It leaves the model now, and is written to the
+   * database shortly. Entries that are not in the database, which have
+   * negative ids, are ignored.
+   */
+  public void markAsRead(long id) {
+    if (id < 0) {
+      return;
+    }
+    PlaylistEntry entry = byId.remove(id);
+    if (entry != null) {
+      unread.remove(entry);
+    }
+    if (pendingReads.isEmpty()) {
+      handler.postDelayed(flush, FLUSH_DELAY);
+    }
+    pendingReads.add(id);
+  }
+
+  /**
+   * Writes waiting read marks to the database, in one update.
+   */
+  public void flush() {
+    handler.removeCallbacks(flush);
+    if (pendingReads.isEmpty()) {
+      return;
+    }
+    StringBuilder where = new StringBuilder(Items._ID).append(" IN (");
+    for (int i = 0; i < pendingReads.size(); i++) {
+      if (i > 0) {
+        where.append(',');
+      }
+      where.append(pendingReads.get(i));
+    }
+    where.append(')');
+    pendingReads.clear();
+    ContentValues values = new ContentValues();
+    values.put(Items.IS_READ, true);
+    if (resolver.update(PlaylistProvider.CONTENT_URI, values,
+        where.toString(), null) > 0) {
+      ownChanges++;
+    }
+  }
+
+  private void ensureLoaded() {
+    if (isLoaded) {
+      return;
+    }
+    unread.clear();
+    byId.clear();
+    Cursor c = resolver.query(PlaylistProvider.CONTENT_URI,
+        Items.ALL_COLUMNS, Items.IS_READ + " = ?", new String[] { "0" },
+        Items.PLAY_ORDER);
+    if (c == null) {
+      return;
+    }
+    try {
+      int idColumn = c.getColumnIndex(Items._ID);
+      int nameColumn = c.getColumnIndex(Items.NAME);
+      int urlColumn = c.getColumnIndex(Items.URL);
+      int orderColumn = c.getColumnIndex(Items.PLAY_ORDER);
+      int storyColumn = c.getColumnIndex(Items.STORY_ID);
+      while (c.moveToNext()) {
+        PlaylistEntry entry = new PlaylistEntry(c.getLong(idColumn),
+            c.getString(urlColumn), c.getString(nameColumn), false,
+            c.getLong(orderColumn), c.getString(storyColumn));
+        add(entry);
+      }
+    } finally {
+      c.close();
+    }
+    // Marks not yet written still count.
+    for (Long id : pendingReads) {
+      PlaylistEntry entry = byId.remove(id);
+      if (entry != null) {
+        unread.remove(entry);
+      }
+    }
+    isLoaded = true;
+    Log.d(LOG_TAG, "Loaded " + unread.size() + " unread entries");
+  }
+
+  private void add(PlaylistEntry entry) {
+    unread.add(entry);
+    byId.put(entry.id, entry);
+  }
+
+  private static PlaylistEntry probe(long order, long id) {
+    return new PlaylistEntry(id, null, null, false, order);
+  }
+}
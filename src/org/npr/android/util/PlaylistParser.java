@@ -14,8 +14,16 @@
 
 package org.npr.android.util;
 
-import java.util.List;
+import java.io.IOException;
 
+/**
+ * Reads the URLs out of a playlist file one at a time, as the file arrives,
+ * so that the first can be played without waiting for the rest. Parsers do
+ * not close the stream they read; that is left to whoever opened it.
+ */
 public interface PlaylistParser {
-  public List<String> getUrls();
+  /**
+   * @return The next URL, or null at the end of the playlist
+   */
+  public String nextUrl() throws IOException;
 }
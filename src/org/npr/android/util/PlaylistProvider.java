@@ -15,16 +15,23 @@
 package org.npr.android.util;
 
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.ContentProvider;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.provider.BaseColumns;
 import android.util.Log;
@@ -32,12 +39,46 @@ import android.util.Log;
 public class PlaylistProvider extends ContentProvider {
   public static final Uri CONTENT_URI = Uri
       .parse("content://org.npr.android.util.Playlist");
+  /**
+   * Where to resume playing files from, by URL. Positions are not part of
+   * the playlist: anything that is played again, from the playlist or not,
+   * picks up where it was left. Changes to them are not notified.
+   */
+  public static final Uri POSITIONS_URI =
+      Uri.withAppendedPath(CONTENT_URI, "positions");
   private static final String DATABASE_NAME = "playlist.db";
-  protected static final int DATABASE_VERSION = 2;
+  protected static final int DATABASE_VERSION = 6;
   protected static final String TABLE_NAME = "items";
+  protected static final String POSITIONS_TABLE_NAME = "positions";
   private static final String LOG_TAG = PlaylistProvider.class.getName();
   private PlaylistHelper helper;
 
+  /**
+   * Play orders are spaced this far apart, so that an item can be moved
+   * between two others by giving it the order halfway between theirs,
+   * without renumbering anything else.
+   */
+  public static final int GAP = 4096;
+  // Once two neighbours are this close, the orders are respaced in the
+  // background, before the gap between them runs out.
+  private static final int MIN_GAP = 16;
+  // The query parameter on an item's URI that asks update to move it after
+  // the item with the given id, or to the top if the id is -1.
+  private static final String PARAM_MOVE_AFTER = "moveAfter";
+  // The query parameter that limits how many rows a query returns.
+  private static final String PARAM_LIMIT = "limit";
+
+  private final ExecutorService rebalancer =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "PlaylistRebalancer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+  private final AtomicBoolean isRebalanceScheduled = new AtomicBoolean();
+
   /**
    * For testing purposes, allows to override the existing helper so we don't
    * touch the actual filesystem.
@@ -48,9 +89,9 @@ public class PlaylistProvider extends ContentProvider {
     this.helper = helper;
   }
 
-  public static int getMax(Context context) {
+  public static long getMax(Context context) {
     PlaylistHelper temp = new PlaylistHelper(context);
-    int result = getMax(context, temp);
+    long result = getMax(context, temp);
     temp.close();
     return result;
   }
@@ -62,23 +103,51 @@ public class PlaylistProvider extends ContentProvider {
    * @param helper
    * @return The max play order, or -1 if there are no entries in the playlist
    */
-  protected static int getMax(Context context, PlaylistHelper helper) {
-    SQLiteDatabase db = helper.getReadableDatabase();
-    
-    if (DatabaseUtils.queryNumEntries(db, TABLE_NAME) == 0) {
-      return -1;
+  protected static long getMax(Context context, PlaylistHelper helper) {
+    return getMax(helper.getReadableDatabase());
+  }
+
+  private static long getMax(SQLiteDatabase db) {
+    SQLiteStatement max = db.compileStatement("SELECT ifnull(max("
+        + Items.PLAY_ORDER + "), -1) FROM " + TABLE_NAME);
+    try {
+      return max.simpleQueryForLong();
+    } finally {
+      max.close();
     }
+  }
 
-    return (int) DatabaseUtils.longForQuery(db, "select max(play_order) from "
-        + TABLE_NAME, null);
+  /**
+   * Adds entries to the end of the playlist, in the order given, in one
+   * transaction.
+   *
+   * @return The number of entries added
+   */
+  public static int enqueue(ContentResolver resolver,
+      List<PlaylistEntry> entries) {
+    ContentValues[] values = new ContentValues[entries.size()];
+    for (int i = 0; i < values.length; i++) {
+      PlaylistEntry entry = entries.get(i);
+      values[i] = new ContentValues();
+      values[i].put(Items.NAME, entry.title);
+      values[i].put(Items.URL, entry.url);
+      values[i].put(Items.STORY_ID, entry.storyID);
+    }
+    return resolver.bulkInsert(CONTENT_URI, values);
   }
 
   @Override
   public int delete(Uri uri, String selection, String[] selectionArgs) {
     SQLiteDatabase db = helper.getWritableDatabase();
+    if (isPositions(uri)) {
+      return db.delete(POSITIONS_TABLE_NAME, selection, selectionArgs);
+    }
     long id = ContentUris.parseId(uri);
     String realSelection = getSelectionFromId(uri, selection);
     int result = db.delete(TABLE_NAME, realSelection, selectionArgs);
+    if (result > 0) {
+      notifyChange(uri);
+    }
     return result;
   }
 
@@ -90,10 +159,68 @@ public class PlaylistProvider extends ContentProvider {
   @Override
   public Uri insert(Uri uri, ContentValues values) {
     SQLiteDatabase db = helper.getWritableDatabase();
+    if (isPositions(uri)) {
+      // A URL has one position, so a new one replaces the old.
+      db.replace(POSITIONS_TABLE_NAME, null, values);
+      return uri;
+    }
     long id = db.insert(TABLE_NAME, Items.NAME, values);
+    if (id != -1) {
+      notifyChange(uri);
+    }
     return ContentUris.withAppendedId(uri, id);
   }
 
+  /**
+   * Appends rows to the end of the playlist, in one transaction with a
+   * single change notification. Rows are given play orders following on
+   * from the last, in the order given, and start unread; any play order or
+   * read state in the values is ignored.
+   */
+  @Override
+  public int bulkInsert(Uri uri, ContentValues[] values) {
+    SQLiteDatabase db = helper.getWritableDatabase();
+    int inserted = 0;
+    db.beginTransaction();
+    try {
+      long order = Math.max(getMax(db), 0);
+      SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE_NAME
+          + " (" + Items.NAME + ", " + Items.URL + ", " + Items.STORY_ID
+          + ", " + Items.PLAY_ORDER + ", " + Items.IS_READ
+          + ") VALUES (?, ?, ?, ?, 0)");
+      try {
+        for (ContentValues row : values) {
+          bindString(insert, 1, row.getAsString(Items.NAME));
+          bindString(insert, 2, row.getAsString(Items.URL));
+          bindString(insert, 3, row.getAsString(Items.STORY_ID));
+          order += GAP;
+          insert.bindLong(4, order);
+          if (insert.executeInsert() != -1) {
+            inserted++;
+          }
+        }
+      } finally {
+        insert.close();
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    if (inserted > 0) {
+      notifyChange(uri);
+    }
+    return inserted;
+  }
+
+  private static void bindString(SQLiteStatement statement, int index,
+      String value) {
+    if (value == null) {
+      statement.bindNull(index);
+    } else {
+      statement.bindString(index, value);
+    }
+  }
+
   @Override
   public boolean onCreate() {
     helper = new PlaylistHelper(getContext());
@@ -104,10 +231,16 @@ public class PlaylistProvider extends ContentProvider {
   public Cursor query(Uri uri, String[] projection, String selection,
       String[] selectionArgs, String sortOrder) {
     SQLiteDatabase db = helper.getWritableDatabase();
+    if (isPositions(uri)) {
+      return db.query(POSITIONS_TABLE_NAME, projection, selection,
+          selectionArgs, null, null, sortOrder);
+    }
     String realSelection = getSelectionFromId(uri, selection);
 
     Cursor result = db.query(TABLE_NAME, projection, realSelection,
-        selectionArgs, null /* no group by */, null /* no having */, sortOrder);
+        selectionArgs, null /* no group by */, null /* no having */, sortOrder,
+        uri.getQueryParameter(PARAM_LIMIT));
+    result.setNotificationUri(getContext().getContentResolver(), uri);
     Log.d(LOG_TAG, uri.toString() + ";" + realSelection + ";"
         + Arrays.toString(selectionArgs));
     return result;
@@ -117,12 +250,176 @@ public class PlaylistProvider extends ContentProvider {
   public int update(Uri uri, ContentValues values, String selection,
       String[] selectionArgs) {
     SQLiteDatabase db = helper.getWritableDatabase();
+    String after = uri.getQueryParameter(PARAM_MOVE_AFTER);
+    if (after != null) {
+      return move(db, ContentUris.parseId(uri), Long.parseLong(after));
+    }
     String realSelection = getSelectionFromId(uri, selection);
     Log.d(LOG_TAG, "update where " + realSelection);
     int result = db.update(TABLE_NAME, values, realSelection, selectionArgs);
+    if (result > 0) {
+      notifyChange(uri);
+    }
     return result;
   }
 
+  /**
+   * @return The playlist URI, for a query that returns at most the given
+   *         number of rows
+   */
+  public static Uri withLimit(int limit) {
+    return CONTENT_URI.buildUpon().appendQueryParameter(PARAM_LIMIT,
+        Integer.toString(limit)).build();
+  }
+
+  /**
+   * Moves an item in the playlist, by changing its play order alone.
+   *
+   * @param id The item to move
+   * @param afterId The item to put it after, or -1 to put it first
+   * @return 1 if the item was moved, otherwise 0
+   */
+  public static int move(ContentResolver resolver, long id, long afterId) {
+    Uri uri = ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+        .appendQueryParameter(PARAM_MOVE_AFTER, Long.toString(afterId))
+        .build();
+    return resolver.update(uri, new ContentValues(), null, null);
+  }
+
+  private int move(SQLiteDatabase db, long id, long afterId) {
+    if (id == afterId) {
+      return 0;
+    }
+    long order;
+    boolean isCrowded;
+    db.beginTransaction();
+    try {
+      long[] bounds = getBounds(db, id, afterId);
+      if (bounds == null) {
+        return 0;
+      }
+      if (bounds[1] - bounds[0] < 2) {
+        // No room left between them; respace now rather than wait.
+        rebalance(db);
+        bounds = getBounds(db, id, afterId);
+      }
+      order = bounds[0] + (bounds[1] - bounds[0]) / 2;
+      isCrowded = bounds[1] - bounds[0] < MIN_GAP * 2;
+      SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_NAME
+          + " SET " + Items.PLAY_ORDER + " = ? WHERE " + Items._ID + " = ?");
+      try {
+        update.bindLong(1, order);
+        update.bindLong(2, id);
+        update.execute();
+      } finally {
+        update.close();
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    Log.d(LOG_TAG, "Moved " + id + " after " + afterId + " to " + order);
+    notifyChange(CONTENT_URI);
+    if (isCrowded) {
+      scheduleRebalance();
+    }
+    return 1;
+  }
+
+  /**
+   * @return The play orders an item moved after another must go between,
+   *         or null if the other item does not exist. The upper bound is a
+   *         gap past the lower if nothing follows.
+   */
+  private static long[] getBounds(SQLiteDatabase db, long id, long afterId) {
+    long low = 0;
+    if (afterId != -1) {
+      SQLiteStatement find = db.compileStatement("SELECT "
+          + Items.PLAY_ORDER + " FROM " + TABLE_NAME + " WHERE " + Items._ID
+          + " = ?");
+      try {
+        find.bindLong(1, afterId);
+        low = find.simpleQueryForLong();
+      } catch (SQLiteDoneException e) {
+        return null;
+      } finally {
+        find.close();
+      }
+    }
+    SQLiteStatement next = db.compileStatement("SELECT ifnull(min("
+        + Items.PLAY_ORDER + "), -1) FROM " + TABLE_NAME + " WHERE "
+        + Items.PLAY_ORDER + " > ? AND " + Items._ID + " != ?");
+    long high;
+    try {
+      next.bindLong(1, low);
+      next.bindLong(2, id);
+      high = next.simpleQueryForLong();
+    } finally {
+      next.close();
+    }
+    if (high == -1) {
+      high = low + GAP * 2;
+    }
+    return new long[] { low, high };
+  }
+
+  private void scheduleRebalance() {
+    if (!isRebalanceScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    rebalancer.execute(new Runnable() {
+      @Override
+      public void run() {
+        isRebalanceScheduled.set(false);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+          rebalance(db);
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+        notifyChange(CONTENT_URI);
+      }
+    });
+  }
+
+  /**
+   * Respaces the play orders a gap apart, keeping the items in the same
+   * order. Must be called in a transaction.
+   */
+  private static void rebalance(SQLiteDatabase db) {
+    Cursor c = db.query(TABLE_NAME, new String[] { Items._ID }, null, null,
+        null, null, Items.PLAY_ORDER + ", " + Items._ID);
+    SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_NAME
+        + " SET " + Items.PLAY_ORDER + " = ? WHERE " + Items._ID + " = ?");
+    try {
+      long order = 0;
+      while (c.moveToNext()) {
+        order += GAP;
+        update.bindLong(1, order);
+        update.bindLong(2, c.getLong(0));
+        update.execute();
+      }
+      Log.d(LOG_TAG, "Respaced " + c.getCount() + " play orders");
+    } finally {
+      update.close();
+      c.close();
+    }
+  }
+
+  /**
+   * Tells observers of the playlist, such as open cursors and
+   * {@link PlaylistModel}, that it has changed.
+   */
+  private void notifyChange(Uri uri) {
+    getContext().getContentResolver().notifyChange(uri, null);
+  }
+
+  private static boolean isPositions(Uri uri) {
+    return POSITIONS_TABLE_NAME.equals(uri.getLastPathSegment());
+  }
+
   private String getSelectionFromId(Uri uri, String selection) {
     long id = ContentUris.parseId(uri);
     String realSelection = selection == null ? "" : selection + " and ";
@@ -149,6 +446,16 @@ public class PlaylistProvider extends ContentProvider {
     }
   }
 
+  public static class Positions {
+    public static final String URL = "url";
+    // Where to resume playing from, in milliseconds.
+    public static final String POSITION = "position";
+
+    // This class cannot be instantiated
+    private Positions() {
+    }
+  }
+
   protected static class PlaylistHelper extends SQLiteOpenHelper {
     PlaylistHelper(Context context) {
       super(context, DATABASE_NAME, null /* no cursor factory */,
@@ -161,6 +468,26 @@ public class PlaylistProvider extends ContentProvider {
           + " INTEGER PRIMARY KEY," + Items.NAME + " TEXT," + Items.URL
           + " VARCHAR," + Items.IS_READ + " BOOLEAN," + Items.PLAY_ORDER
           + " INTEGER," + Items.STORY_ID + " TEXT" + ");");
+      createIndexes(db);
+      createPositions(db);
+    }
+
+    private void createPositions(SQLiteDatabase db) {
+      db.execSQL("CREATE TABLE IF NOT EXISTS " + POSITIONS_TABLE_NAME + " ("
+          + Positions.URL + " VARCHAR PRIMARY KEY," + Positions.POSITION
+          + " INTEGER" + ");");
+    }
+
+    /**
+     * Indexes the columns the playlist is looked up and ordered by: unread
+     * items in play order, and all items in play order.
+     */
+    private void createIndexes(SQLiteDatabase db) {
+      db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_read_order ON "
+          + TABLE_NAME + " (" + Items.IS_READ + ", " + Items.PLAY_ORDER
+          + ");");
+      db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_order ON "
+          + TABLE_NAME + " (" + Items.PLAY_ORDER + ");");
     }
 
     @SuppressWarnings("unused")
@@ -172,7 +499,7 @@ public class PlaylistProvider extends ContentProvider {
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
       Log.w(PlaylistHelper.class.getName(), "Upgrading database from version "
           + oldVersion + " to " + newVersion);
-      if (newVersion <= 3) {
+      if (oldVersion < 2) {
         try {
           // TODO: This is kind of a hack, and it would be better to check for
           // the existence of the column first.
@@ -182,6 +509,24 @@ public class PlaylistProvider extends ContentProvider {
           Log.e(LOG_TAG, error.toString());
         }
       }
+      if (oldVersion < 3) {
+        createIndexes(db);
+      }
+      if (oldVersion < 4) {
+        // Play orders used to be consecutive.
+        rebalance(db);
+      }
+      if (oldVersion < 6) {
+        createPositions(db);
+      }
+      if (oldVersion == 5) {
+        // Version 5 kept positions in a column of the playlist items, which
+        // is left unused.
+        db.execSQL("INSERT OR REPLACE INTO " + POSITIONS_TABLE_NAME + " ("
+            + Positions.URL + ", " + Positions.POSITION + ") SELECT "
+            + Items.URL + ", position FROM " + TABLE_NAME
+            + " WHERE position > 0 AND " + Items.URL + " IS NOT NULL;");
+      }
     }
   }
 }
@@ -16,38 +16,29 @@ package org.npr.android.util;
 
 
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 
 public class PlsParser implements PlaylistParser {
   private final BufferedReader reader;
 
-  public PlsParser(File file) throws FileNotFoundException {
-    this.reader = new BufferedReader(new FileReader(file), 1024);
+  public PlsParser(InputStream stream) {
+    this.reader = new BufferedReader(new InputStreamReader(stream), 1024);
   }
 
   @Override
-  public List<String> getUrls() {
-    LinkedList<String> urls = new LinkedList<String>();
+  public String nextUrl() throws IOException {
     while (true) {
-      try {
-        String line = reader.readLine();
-        if (line == null) {
-          break;
-        } 
-        String url = parseLine(line);
-        if (url != null && !url.equals("")) {
-          urls.add(url);
-        }
-      } catch (IOException e) {
-        e.printStackTrace();
+      String line = reader.readLine();
+      if (line == null) {
+        return null;
+      }
+      String url = parseLine(line);
+      if (url != null && !url.equals("")) {
+        return url;
       }
     }
-    return urls;
   }
 
   private String parseLine(String line) {
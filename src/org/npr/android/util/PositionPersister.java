@@ -0,0 +1,133 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package org.npr.android.util;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Handler;
+import android.util.Log;
+
+import org.npr.android.util.PlaylistProvider.Positions;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Saves how far into each file playback has got, by URL, so that it can
+ * carry on from there whenever the file is played again. Positions may be
+ * given as often as they change; they are written behind, at most once
+ * every few seconds, with only the latest position for each URL written.
+ * Pausing or stopping should flush them straight away.
+ * <p>
+ * A persister is not thread-safe. It must be used on the thread of the
+ * handler it is given.
+ */
+public class PositionPersister {
+  private static final String LOG_TAG = PositionPersister.class.getName();
+  public static final int FLUSH_INTERVAL = 5000;
+  private static final String[] PROJECTION = { Positions.POSITION };
+
+  private final ContentResolver resolver;
+  private final Handler handler;
+  private final Map<String, Integer> pending = new HashMap<String, Integer>();
+  private boolean isFlushScheduled = false;
+  private int writes = 0;
+  private final Runnable flush = new Runnable() {
+    @Override
+    public void run() {
+      isFlushScheduled = false;
+      flush();
+    }
+  };
+
+  public PositionPersister(ContentResolver resolver, Handler handler) {
+    this.resolver = resolver;
+    this.handler = handler;
+  }
+
+  /**
+   * Records where playback of a URL has got to, to be written within
+   * {@link #FLUSH_INTERVAL}. A position of 0, for a file played to the end
+   * or not started, forgets the URL.
+   */
+  public void save(String url, int position) {
+    Integer last = pending.put(url, position);
+    if (last != null && last == position) {
+      return;
+    }
+    if (!isFlushScheduled) {
+      isFlushScheduled = true;
+      handler.postDelayed(flush, FLUSH_INTERVAL);
+    }
+  }
+
+  /**
+   * @return Where playback of a URL got to, in milliseconds, or 0 to start
+   *         at the beginning
+   */
+  public int getPosition(String url) {
+    Integer position = pending.get(url);
+    if (position != null) {
+      return position;
+    }
+    Cursor c = resolver.query(PlaylistProvider.POSITIONS_URI, PROJECTION,
+        Positions.URL + " = ?", new String[] { url }, null);
+    if (c == null) {
+      return 0;
+    }
+    try {
+      return c.moveToFirst() ? c.getInt(0) : 0;
+    } finally {
+      c.close();
+    }
+  }
+
+  /**
+   * Writes the positions waiting to be saved.
+   */
+  public void flush() {
+    if (isFlushScheduled) {
+      isFlushScheduled = false;
+      handler.removeCallbacks(flush);
+    }
+    for (Entry<String, Integer> position : pending.entrySet()) {
+      if (position.getValue() > 0) {
+        ContentValues values = new ContentValues();
+        values.put(Positions.URL, position.getKey());
+        values.put(Positions.POSITION, position.getValue());
+        resolver.insert(PlaylistProvider.POSITIONS_URI, values);
+      } else {
+        resolver.delete(PlaylistProvider.POSITIONS_URI, Positions.URL + " = ?",
+            new String[] { position.getKey() });
+      }
+      writes++;
+    }
+    if (!pending.isEmpty()) {
+      Log.d(LOG_TAG, "Saved " + pending.size() + " positions; " + writes +
+          " writes in all");
+      pending.clear();
+    }
+  }
+
+  /**
+   * @return The number of rows written so far
+   */
+  public int getWrites() {
+    return writes;
+  }
+}
@@ -0,0 +1,140 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.util;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+
+/**
+ * Helpers for walking an XmlPullParser the way the DOM based factories walk a
+ * Node tree, without ever holding more than the current element in memory.
+ */
+public class PullParserUtils {
+
+  /**
+   * Iterates over the child elements of the element the parser is positioned
+   * on, in the manner of IterableNodeList. Children that are not consumed by
+   * the caller are walked over, so callers only need to handle the elements
+   * they are interested in.
+   */
+  public static class ChildElements {
+    private final XmlPullParser parser;
+    private final int depth;
+    private boolean hasChildNodes = false;
+
+    public ChildElements(XmlPullParser parser) {
+      this.parser = parser;
+      this.depth = parser.getDepth();
+    }
+
+    /**
+     * Advances to the start tag of the next child element.
+     *
+     * @return true if the parser is on a child start tag, false if the parser
+     *         is on the end tag of the parent element
+     */
+    public boolean next() throws XmlPullParserException, IOException {
+      int type;
+      while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+        if (type == XmlPullParser.END_TAG && parser.getDepth() == depth) {
+          return false;
+        }
+        if (type == XmlPullParser.TEXT) {
+          hasChildNodes = true;
+        } else if (type == XmlPullParser.START_TAG) {
+          hasChildNodes = true;
+          if (parser.getDepth() == depth + 1) {
+            return true;
+          }
+        }
+      }
+      throw new XmlPullParserException("Unexpected end of document");
+    }
+
+    /**
+     * @return true if any text or element has been seen inside the parent so
+     *         far. Once {@link #next()} has returned false, this is equivalent
+     *         to Node#hasChildNodes().
+     */
+    public boolean hasChildNodes() {
+      return hasChildNodes;
+    }
+  }
+
+  /**
+   * Reads the text content of the current element and its descendants, as
+   * Node#getTextContent() would, leaving the parser on the element's end tag.
+   *
+   * @param parser A parser positioned on a start tag
+   * @return The text content, or null if the element has no child nodes
+   */
+  public static String readText(XmlPullParser parser)
+      throws XmlPullParserException, IOException {
+    int depth = parser.getDepth();
+    StringBuilder text = null;
+    int type;
+    while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+      if (type == XmlPullParser.END_TAG && parser.getDepth() == depth) {
+        return text == null ? null : text.toString();
+      }
+      if (text == null && (type == XmlPullParser.TEXT ||
+          type == XmlPullParser.START_TAG)) {
+        text = new StringBuilder();
+      }
+      if (type == XmlPullParser.TEXT) {
+        text.append(parser.getText());
+      }
+    }
+    throw new XmlPullParserException("Unexpected end of document");
+  }
+
+  /**
+   * Advances the parser to the end tag of the element at the given depth,
+   * discarding everything in between. Used to recover from an element that
+   * could not be parsed.
+   *
+   * @param parser The parser
+   * @param depth The depth of the element to skip to the end of
+   */
+  public static void skipToEnd(XmlPullParser parser, int depth)
+      throws XmlPullParserException, IOException {
+    int type = parser.getEventType();
+    while (!(type == XmlPullParser.END_TAG && parser.getDepth() == depth)) {
+      if (type == XmlPullParser.END_DOCUMENT) {
+        throw new XmlPullParserException("Unexpected end of document");
+      }
+      type = parser.next();
+    }
+  }
+
+  /**
+   * Advances the parser to the document's root element.
+   *
+   * @return true if the parser is on the root start tag
+   */
+  public static boolean moveToRoot(XmlPullParser parser)
+      throws XmlPullParserException, IOException {
+    int type = parser.getEventType();
+    while (type != XmlPullParser.START_TAG) {
+      if (type == XmlPullParser.END_DOCUMENT) {
+        return false;
+      }
+      type = parser.next();
+    }
+    return true;
+  }
+}
@@ -15,18 +15,18 @@
 package org.npr.api;
 
 import android.util.Log;
+import android.util.Xml;
 
-import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -39,6 +39,14 @@ public class Client {
   private static final String LOG_TAG = Client.class.getName();
   private final String url;
 
+  /**
+   * Consumes a response incrementally from a pull parser.
+   */
+  public interface PullHandler<T> {
+    public T parse(XmlPullParser parser) throws XmlPullParserException,
+        IOException;
+  }
+
   public Client(String url) {
     this.url = url;
   }
@@ -52,19 +60,25 @@ public class Client {
     dbf.setNamespaceAware(false);
 
     if (data != null) {
-      Document document = dbf.newDocumentBuilder().parse(data);
-      Log.d(LOG_TAG, "DOM parsed");
-      return document.getDocumentElement();
+      try {
+        Document document = dbf.newDocumentBuilder().parse(data);
+        Log.d(LOG_TAG, "DOM parsed");
+        return document.getDocumentElement();
+      } finally {
+        HttpTransport.close(data);
+      }
     }
     return null;
   }
 
   public void sax(ContentHandler handler) {
+    InputStream data = null;
     try {
       XMLReader xr =
           SAXParserFactory.newInstance().newSAXParser().getXMLReader();
       xr.setContentHandler(handler);
-      xr.parse(new InputSource(download()));
+      data = download();
+      xr.parse(new InputSource(data));
     } catch (SAXException e) {
       Log.e(LOG_TAG, "error creating parser", e);
     } catch (ParserConfigurationException e) {
@@ -73,26 +87,46 @@ public class Client {
       Log.e(LOG_TAG, "error creating parser", e);
     } catch (IOException e) {
       Log.e(LOG_TAG, "error parsing", e);
+    } finally {
+      HttpTransport.close(data);
     }
   }
 
-  private InputStream download() {
-    InputStream data = null;
-    Log.d(LOG_TAG, "Starting download: " + url);
-    HttpClient http = new DefaultHttpClient();
-    HttpGet method = new HttpGet(url);
-
-    HttpResponse response = null;
+  /**
+   * Parses the response with a pull parser reading directly from the
+   * network, so the handler sees each element as soon as it has arrived
+   * rather than after the whole document has been downloaded.
+   *
+   * @param handler The handler that consumes the document
+   * @return The handler's result, or null if the download or parse failed
+   */
+  public <T> T pull(PullHandler<T> handler) {
+    InputStream data = download();
+    if (data == null) {
+      return null;
+    }
     try {
-      response = http.execute(method);
-      data = response.getEntity().getContent();
-    } catch (ClientProtocolException e) {
-      Log.e(LOG_TAG, "error downloading", e);
+      XmlPullParser parser = Xml.newPullParser();
+      parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+      parser.setInput(data, null);
+      T result = handler.parse(parser);
+      Log.d(LOG_TAG, "Pull parsed");
+      return result;
+    } catch (XmlPullParserException e) {
+      Log.e(LOG_TAG, "error parsing", e);
     } catch (IOException e) {
-      Log.e(LOG_TAG, "error downloading", e);
-    } catch (IllegalStateException e) {
-      Log.e(LOG_TAG, "error downloading", e);
+      Log.e(LOG_TAG, "error parsing", e);
+    } finally {
+      HttpTransport.close(data);
     }
+    return null;
+  }
+
+  private InputStream download() {
+    Log.d(LOG_TAG, "Starting download: " + url);
+    HttpCache cache = HttpCache.instance();
+    InputStream data =
+        cache != null ? cache.open(url) : HttpTransport.open(url);
     Log.d(LOG_TAG, "Download complete");
     return data;
   }
@@ -0,0 +1,448 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.api;
+
+import android.util.Log;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.npr.android.util.DiskLruCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An on-disk cache of API responses. Responses are stored under their URL
+ * with the API key removed, and are served without touching the network for
+ * as long as their Cache-Control or Expires headers allow. After that they
+ * are revalidated with a conditional GET, so a response that has not changed
+ * costs a 304 rather than the whole document.
+ * <p>
+ * Each entry is two files in a {@link DiskLruCache}: the response headers we
+ * care about, and the body.
+ */
+public class HttpCache {
+  private static final String LOG_TAG = HttpCache.class.getName();
+
+  public static final long DEFAULT_MAX_SIZE = 2 * 1024 * 1024;
+
+  private static final String META_SUFFIX = ".0";
+  private static final String BODY_SUFFIX = ".1";
+
+  private static final String META_URL = "url";
+  private static final String META_ETAG = "etag";
+  private static final String META_LAST_MODIFIED = "lastModified";
+  private static final String META_EXPIRES = "expires";
+
+  private static HttpCache instance;
+
+  private final DiskLruCache store;
+  private final AtomicInteger hitCount = new AtomicInteger();
+  private final AtomicInteger missCount = new AtomicInteger();
+  private final AtomicInteger revalidationCount = new AtomicInteger();
+
+  private HttpCache(File directory, long maxSize) {
+    store = new DiskLruCache(directory, maxSize);
+  }
+
+  public static synchronized void createInstance(File directory,
+      long maxSize) {
+    if (instance == null) {
+      instance = new HttpCache(directory, maxSize);
+    }
+  }
+
+  /**
+   * @return The cache, or null if none has been created
+   */
+  public static synchronized HttpCache instance() {
+    return instance;
+  }
+
+  /**
+   * @return The number of requests served from the cache without any
+   *         network traffic
+   */
+  public int getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return The number of requests for which the full response was
+   *         downloaded
+   */
+  public int getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * @return The number of requests for which the server confirmed, with a
+   *         304, that the cached response was still current
+   */
+  public int getRevalidationCount() {
+    return revalidationCount.get();
+  }
+
+  /**
+   * Opens the given URL, from the cache if possible.
+   *
+   * @param url The URL to download
+   * @return The content stream, or null if the download failed. The caller
+   *         must close it.
+   */
+  public InputStream open(String url) {
+    String name = DiskLruCache.hashKey(getCacheKey(url));
+    Properties meta = readMeta(name);
+    File body = meta == null ? null : store.get(name + BODY_SUFFIX);
+    if (body == null) {
+      meta = null;
+    }
+
+    long now = System.currentTimeMillis();
+    if (meta != null && now < getLong(meta, META_EXPIRES)) {
+      InputStream cached = openFile(body);
+      if (cached != null) {
+        hitCount.incrementAndGet();
+        Log.d(LOG_TAG, "Cache hit: " + url);
+        return cached;
+      }
+    }
+
+    HttpGet method = new HttpGet(url);
+    if (meta != null) {
+      String etag = meta.getProperty(META_ETAG);
+      if (etag != null) {
+        method.addHeader("If-None-Match", etag);
+      }
+      String lastModified = meta.getProperty(META_LAST_MODIFIED);
+      if (lastModified != null) {
+        method.addHeader("If-Modified-Since", lastModified);
+      }
+    }
+
+    try {
+      HttpResponse response = HttpTransport.execute(method);
+      HttpEntity entity = response.getEntity();
+      int status = response.getStatusLine().getStatusCode();
+
+      if (status == HttpStatus.SC_NOT_MODIFIED && meta != null) {
+        if (entity != null) {
+          entity.consumeContent();
+        }
+        InputStream cached = openFile(body);
+        if (cached != null) {
+          revalidationCount.incrementAndGet();
+          Log.d(LOG_TAG, "Cache revalidated: " + url);
+          updateMeta(meta, response, now);
+          writeMeta(name, meta);
+          return cached;
+        }
+        // The body went away under us; fetch it again without conditions.
+        store.remove(name + META_SUFFIX);
+        return open(url);
+      }
+
+      if (entity == null) {
+        return null;
+      }
+      missCount.incrementAndGet();
+      InputStream data = entity.getContent();
+      if (status != HttpStatus.SC_OK || hasDirective(response, "no-store")) {
+        store.remove(name + META_SUFFIX);
+        store.remove(name + BODY_SUFFIX);
+        return data;
+      }
+      Properties newMeta = new Properties();
+      newMeta.setProperty(META_URL, getCacheKey(url));
+      updateMeta(newMeta, response, now);
+      return new CachingInputStream(data, name, newMeta);
+    } catch (ClientProtocolException e) {
+      Log.e(LOG_TAG, "error downloading", e);
+      method.abort();
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "error downloading", e);
+      method.abort();
+    } catch (IllegalStateException e) {
+      Log.e(LOG_TAG, "error downloading", e);
+      method.abort();
+    }
+    return null;
+  }
+
+  /**
+   * Strips the API key from the URL, so that entries survive a change of key
+   * and the key never ends up on disk.
+   */
+  static String getCacheKey(String url) {
+    int query = url.indexOf('?');
+    if (query < 0) {
+      return url;
+    }
+    StringBuilder key = new StringBuilder(url.substring(0, query + 1));
+    String prefix = ApiConstants.PARAM_API_KEY + "=";
+    for (String param : url.substring(query + 1).split("&")) {
+      if (param.length() > 0 && !param.startsWith(prefix)) {
+        key.append('&').append(param);
+      }
+    }
+    return key.toString();
+  }
+
+  /**
+   * Records the validators and the expiry time of a response.
+   */
+  private static void updateMeta(Properties meta, HttpResponse response,
+      long now) {
+    Header etag = response.getFirstHeader("ETag");
+    if (etag != null) {
+      meta.setProperty(META_ETAG, etag.getValue());
+    }
+    Header lastModified = response.getFirstHeader("Last-Modified");
+    if (lastModified != null) {
+      meta.setProperty(META_LAST_MODIFIED, lastModified.getValue());
+    }
+    meta.setProperty(META_EXPIRES, Long.toString(getExpires(response, now)));
+  }
+
+  /**
+   * @return The time until which the response may be used without
+   *         revalidation; if it is not in the future the response must be
+   *         revalidated on every use
+   */
+  private static long getExpires(HttpResponse response, long now) {
+    if (hasDirective(response, "no-cache")) {
+      return 0;
+    }
+    for (Header header : response.getHeaders("Cache-Control")) {
+      for (String directive : header.getValue().split(",")) {
+        directive = directive.trim();
+        if (directive.startsWith("max-age=")) {
+          try {
+            return now + 1000 * Long.parseLong(directive.substring(8).trim());
+          } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, "Bad max-age: " + directive);
+          }
+        }
+      }
+    }
+    Header expires = response.getFirstHeader("Expires");
+    Header date = response.getFirstHeader("Date");
+    if (expires != null) {
+      try {
+        long expiresTime = DateUtils.parseDate(expires.getValue()).getTime();
+        long dateTime = date == null ? now :
+            DateUtils.parseDate(date.getValue()).getTime();
+        // Measure against the server clock, not ours.
+        return now + (expiresTime - dateTime);
+      } catch (DateParseException e) {
+        return 0;
+      }
+    }
+    return 0;
+  }
+
+  private static boolean hasDirective(HttpResponse response,
+      String directive) {
+    for (Header header : response.getHeaders("Cache-Control")) {
+      for (String d : header.getValue().split(",")) {
+        if (d.trim().equalsIgnoreCase(directive)) {
+          return true;
+        }
+      }
+    }
+    for (Header header : response.getHeaders("Pragma")) {
+      if (header.getValue().trim().equalsIgnoreCase(directive)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static long getLong(Properties meta, String key) {
+    try {
+      return Long.parseLong(meta.getProperty(key, "0"));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static InputStream openFile(File file) {
+    try {
+      return new FileInputStream(file);
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "", e);
+      return null;
+    }
+  }
+
+  private Properties readMeta(String name) {
+    File file = store.get(name + META_SUFFIX);
+    if (file == null) {
+      return null;
+    }
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      Properties meta = new Properties();
+      meta.load(in);
+      return meta;
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "", e);
+      store.remove(name + META_SUFFIX);
+      return null;
+    } finally {
+      HttpTransport.close(in);
+    }
+  }
+
+  private void writeMeta(String name, Properties meta) {
+    File temp = store.newTempFile();
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(temp);
+      meta.store(out, null);
+      out.close();
+      out = null;
+      store.commit(name + META_SUFFIX, temp);
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "", e);
+      temp.delete();
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          // Ignore
+        }
+      }
+    }
+  }
+
+  /**
+   * Copies a response body to the cache as it is read. The entry is only
+   * committed once the whole body has been seen; closing the stream early
+   * reads out the remainder first, so a parser that stops at the root end
+   * tag still leaves a complete entry behind.
+   */
+  private class CachingInputStream extends FilterInputStream {
+    private final String name;
+    private final Properties meta;
+    private File temp;
+    private OutputStream out;
+    private boolean complete = false;
+
+    private CachingInputStream(InputStream in, String name, Properties meta) {
+      super(in);
+      this.name = name;
+      this.meta = meta;
+      temp = store.newTempFile();
+      try {
+        out = new FileOutputStream(temp);
+      } catch (IOException e) {
+        Log.e(LOG_TAG, "", e);
+        temp = null;
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b == -1) {
+        complete = true;
+      } else if (out != null) {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+      int read = super.read(buffer, offset, count);
+      if (read == -1) {
+        complete = true;
+      } else if (out != null) {
+        write(buffer, offset, read);
+      }
+      return read;
+    }
+
+    private void write(byte[] buffer, int offset, int count) {
+      try {
+        out.write(buffer, offset, count);
+      } catch (IOException e) {
+        Log.e(LOG_TAG, "", e);
+        abandon();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        if (out != null && !complete) {
+          byte[] buffer = new byte[1024];
+          while (read(buffer, 0, buffer.length) != -1) {
+            // Drain
+          }
+        }
+      } catch (IOException e) {
+        Log.e(LOG_TAG, "", e);
+      } finally {
+        super.close();
+        finish();
+      }
+    }
+
+    private void finish() {
+      if (out == null) {
+        return;
+      }
+      try {
+        out.close();
+      } catch (IOException e) {
+        Log.e(LOG_TAG, "", e);
+        complete = false;
+      }
+      out = null;
+      if (complete && store.commit(name + BODY_SUFFIX, temp)) {
+        writeMeta(name, meta);
+      } else {
+        temp.delete();
+      }
+    }
+
+    private void abandon() {
+      try {
+        out.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+      out = null;
+      temp.delete();
+    }
+  }
+}
@@ -0,0 +1,174 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.api;
+
+import android.util.Log;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A process-wide HTTP transport. All requests share a single thread-safe
+ * connection pool, so repeated requests to the same host (api.npr.org, the
+ * image servers, etc.) reuse kept-alive connections instead of paying for a
+ * new TCP and DNS handshake each time.
+ * <p>
+ * Callers must close the stream returned from {@link #open(String)} (or
+ * consume the entity of a response from {@link #execute(HttpGet)}), since
+ * that is what hands the connection back to the pool.
+ */
+public class HttpTransport {
+  private static final String LOG_TAG = HttpTransport.class.getName();
+
+  public static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+  public static final int DEFAULT_READ_TIMEOUT = 30 * 1000;
+  public static final int DEFAULT_MAX_CONNECTIONS = 8;
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+  private static int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+  private static int readTimeout = DEFAULT_READ_TIMEOUT;
+  private static int maxConnections = DEFAULT_MAX_CONNECTIONS;
+  private static int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+  private static DefaultHttpClient client;
+
+  private HttpTransport() {
+    // no instantiation
+  }
+
+  /**
+   * Sets the timeouts used for new connections, in milliseconds. Takes effect
+   * immediately for subsequent requests.
+   *
+   * @param connect The time allowed to establish a connection
+   * @param read The time allowed between two packets of data
+   */
+  public static synchronized void setTimeouts(int connect, int read) {
+    connectTimeout = connect;
+    readTimeout = read;
+    if (client != null) {
+      HttpParams params = client.getParams();
+      HttpConnectionParams.setConnectionTimeout(params, connect);
+      HttpConnectionParams.setSoTimeout(params, read);
+    }
+  }
+
+  /**
+   * Sets the limits of the connection pool. Only takes effect if called
+   * before the first request is made.
+   *
+   * @param total The maximum number of pooled connections
+   * @param perHost The maximum number of pooled connections to a single host
+   */
+  public static synchronized void setConnectionLimits(int total, int perHost) {
+    if (client != null) {
+      Log.w(LOG_TAG, "Connection limits must be set before first use");
+      return;
+    }
+    maxConnections = total;
+    maxConnectionsPerHost = perHost;
+  }
+
+  public static synchronized HttpClient getClient() {
+    if (client == null) {
+      HttpParams params = new BasicHttpParams();
+      HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+      HttpProtocolParams.setUseExpectContinue(params, false);
+      HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+      HttpConnectionParams.setSoTimeout(params, readTimeout);
+      HttpConnectionParams.setStaleCheckingEnabled(params, true);
+      ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+      ConnManagerParams.setMaxConnectionsPerRoute(params,
+          new ConnPerRouteBean(maxConnectionsPerHost));
+
+      SchemeRegistry registry = new SchemeRegistry();
+      registry.register(
+          new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+      registry.register(
+          new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+      ClientConnectionManager manager =
+          new ThreadSafeClientConnManager(params, registry);
+      client = new DefaultHttpClient(manager, params);
+    }
+    return client;
+  }
+
+  public static HttpResponse execute(HttpGet method)
+      throws ClientProtocolException, IOException {
+    return getClient().execute(method);
+  }
+
+  /**
+   * Opens the given URL on the shared client.
+   *
+   * @param url The URL to download
+   * @return The content stream, or null if the download failed. The caller
+   *         must close it.
+   */
+  public static InputStream open(String url) {
+    InputStream data = null;
+    HttpGet method = new HttpGet(url);
+    try {
+      HttpResponse response = execute(method);
+      if (response.getEntity() != null) {
+        data = response.getEntity().getContent();
+      }
+    } catch (ClientProtocolException e) {
+      Log.e(LOG_TAG, "error downloading", e);
+      method.abort();
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "error downloading", e);
+      method.abort();
+    } catch (IllegalStateException e) {
+      Log.e(LOG_TAG, "error downloading", e);
+      method.abort();
+    }
+    return data;
+  }
+
+  /**
+   * Closes the specified stream, releasing its connection back to the pool.
+   *
+   * @param stream The stream to close; may be null
+   */
+  public static void close(InputStream stream) {
+    if (stream != null) {
+      try {
+        stream.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+    }
+  }
+}
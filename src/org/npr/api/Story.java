@@ -16,12 +16,15 @@ package org.npr.api;
 
 import android.util.Log;
 
-import org.apache.http.client.ClientProtocolException;
 import org.npr.android.util.NodeUtils;
+import org.npr.android.util.PullParserUtils;
+import org.npr.android.util.PullParserUtils.ChildElements;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -33,8 +36,6 @@ import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.Map.Entry;
 
-import javax.xml.parsers.ParserConfigurationException;
-
 public class Story extends ApiElement {
   public static final String LOG_TAG = Story.class.getName();
 
@@ -765,6 +766,338 @@ public class Story extends ApiElement {
       return new Audio.Format(mp3, wm, rm);
     }
 
+    // The pull parser versions below mirror the DOM versions above element for
+    // element, so that both produce identical stories. They build each story
+    // as its element is read off the network and keep nothing else around.
+
+    /**
+     * Receives stories one at a time as they are parsed from a story list.
+     * Callbacks are made on the thread doing the parsing.
+     */
+    public interface StoryListener {
+      public void onStory(Story story);
+    }
+
+    /**
+     * Parses a story list from a pull parser positioned at the start of the
+     * document.
+     */
+    public static List<Story> parseStories(XmlPullParser parser)
+        throws XmlPullParserException, IOException {
+      final LinkedList<Story> result = new LinkedList<Story>();
+      parseStories(parser, new StoryListener() {
+        @Override
+        public void onStory(Story story) {
+          result.add(story);
+        }
+      });
+      return result;
+    }
+
+    /**
+     * Parses a story list from a pull parser positioned at the start of the
+     * document, handing each story to the listener as soon as its element
+     * has been read.
+     *
+     * @return The number of stories delivered to the listener
+     */
+    public static int parseStories(XmlPullParser parser,
+        StoryListener listener) throws XmlPullParserException, IOException {
+      int count = 0;
+      if (!PullParserUtils.moveToRoot(parser)) {
+        return count;
+      }
+      ChildElements root = new ChildElements(parser);
+      while (root.next()) {
+        if (parser.getName().equals("list")) {
+          ChildElements list = new ChildElements(parser);
+          while (list.next()) {
+            Story story = createStory(parser);
+            if (story != null) {
+              listener.onStory(story);
+              count++;
+            }
+          }
+        }
+      }
+      return count;
+    }
+
+    private static Story createStory(XmlPullParser parser)
+        throws XmlPullParserException, IOException {
+      if (!parser.getName().equals("story")) {
+        return null;
+      }
+      String id = parser.getAttributeValue(null, "id");
+      int depth = parser.getDepth();
+      StoryBuilder sb = new StoryBuilder(id);
+      ChildElements children = new ChildElements(parser);
+      try {
+        Log.d(LOG_TAG, "parsing story " + id);
+        while (children.next()) {
+          String nodeName = parser.getName();
+          if (nodeName.equals("title")) {
+            String text = PullParserUtils.readText(parser);
+            if (text != null) {
+              sb.withTitle(text);
+            }
+          } else if (nodeName.equals("teaser")) {
+            String text = PullParserUtils.readText(parser);
+            if (text != null) {
+              sb.withTeaser(text);
+            }
+          } else if (nodeName.equals("miniTeaser")) {
+            String text = PullParserUtils.readText(parser);
+            if (text != null) {
+              sb.withMiniTeaser(text);
+            }
+          } else if (nodeName.equals("storyDate")) {
+            String text = PullParserUtils.readText(parser);
+            if (text != null) {
+              sb.withStoryDate(text);
+            }
+          } else if (nodeName.equals("pubDate")) {
+            String text = PullParserUtils.readText(parser);
+            if (text != null) {
+              sb.withPubDate(text);
+            }
+          } else if (nodeName.equals("byline")) {
+            Byline byline = parseByline(parser);
+            if (byline != null) {
+              sb.withByline(byline);
+            }
+          } else if (nodeName.equals("textWithHtml")) {
+            List<String> paragraphs = parseParagraphs(parser);
+            if (paragraphs != null) {
+              sb.withTextWithHtml(new TextWithHtml(paragraphs));
+            }
+          } else if (nodeName.equals("text")) {
+            List<String> paragraphs = parseParagraphs(parser);
+            if (paragraphs != null) {
+              sb.withText(new Text(paragraphs));
+            }
+          } else if (nodeName.equals("audio")) {
+            Audio audio = parseAudio(parser);
+            if (audio != null) {
+              sb.withAudio(audio);
+            }
+          } else if (nodeName.equals("image")) {
+            Image image = parseImage(parser);
+            if (image != null) {
+              sb.withImage(image);
+            }
+          } else if (nodeName.equals("organization")) {
+            Organization organization = parseOrganization(parser);
+            if (organization != null) {
+              sb.withOrganization(organization);
+            }
+          } else if (nodeName.equals("parent")) {
+            Parent parent = parseParent(parser);
+            if (parent != null) {
+              sb.withParent(parent);
+            }
+          }
+        }
+      } catch (RuntimeException e) {
+        Log.e(LOG_TAG, "", e);
+        PullParserUtils.skipToEnd(parser, depth);
+        return null;
+      }
+      if (id == null || !children.hasChildNodes()) {
+        return null;
+      }
+      return sb.build();
+    }
+
+    private static String getTextContent(XmlPullParser parser)
+        throws XmlPullParserException, IOException {
+      String text = PullParserUtils.readText(parser);
+      return text == null ? "" : text;
+    }
+
+    // Each of the following returns null if the element has no child nodes,
+    // since the DOM path skips such elements.
+
+    private static Parent parseParent(XmlPullParser parser)
+        throws XmlPullParserException, IOException {
+      String id = parser.getAttributeValue(null, "id");
+      String title = null;
+      boolean isPrimary = "primaryTopic".equals(
+          parser.getAttributeValue(null, "type"));
+      ChildElements children = new ChildElements(parser);
+      while (children.next()) {
+        if (parser.getName().equals("title")) {
+          title = getTextContent(parser);
+        }
+      }
+      if (!children.hasChildNodes()) {
+        return null;
+      }
+      return new Parent(id, isPrimary, title, null, null);
+    }
+
+    private static Organization parseOrganization(XmlPullParser parser)
+        throws XmlPullParserException, IOException {
+      String id = parser.getAttributeValue(null, "id");
+      String name = null, website = null;
+      ChildElements children = new ChildElements(parser);
+      while (children.next()) {
+        String nodeName = parser.getName();
+        if (nodeName.equals("name")) {
+          name = getTextContent(parser);
+        } else if (nodeName.equals("website")) {
+          website = getTextContent(parser);
+        }
+      }
+      if (!children.hasChildNodes()) {
+        return null;
+      }
+      return new Organization(id, name, website);
+    }
+
+    private static Byline parseByline(XmlPullParser parser)
+        throws XmlPullParserException, IOException {
+      String name = null, htmlLink = null, apiLink = null;
+      ChildElements children = new ChildElements(parser);
+      while (children.next()) {
+        String nodeName = parser.getName();
+        if (nodeName.equals("name")) {
+          name = getTextContent(parser);
+        } else if (nodeName.equals("link")) {
+          String type = parser.getAttributeValue(null, "type");
+          if (type != null) {
+            if (type.equals("api")) {
+              apiLink = getTextContent(parser);
+            } else if (type.equals("html")) {
+              htmlLink = getTextContent(parser);
+            }
+          }
+        }
+      }
+      if (!children.hasChildNodes()) {
+        return null;
+      }
+      return new Byline(name, htmlLink, apiLink);
+    }
+
+    private static Image parseImage(XmlPullParser parser)
+        throws XmlPullParserException, IOException {
+      // Attributes
+      String id = parser.getAttributeValue(null, "id");
+      String src = parser.getAttributeValue(null, "src");
+      String type = null, width = null, hasBorder = null;
+      // Sub-elements
+      String linkUrl = null, producer = null, provider = null, copyright = null;
+      ChildElements children = new ChildElements(parser);
+      while (children.next()) {
+        // Nothing is read from the sub-elements yet.
+      }
+      if (!children.hasChildNodes()) {
+        return null;
+      }
+      return new Image(id, type, width, src, hasBorder, linkUrl, producer,
+          provider, copyright);
+    }
+
+    private static List<String> parseParagraphs(XmlPullParser parser)
+        throws XmlPullParserException, IOException {
+      List<String> paragraphs = new LinkedList<String>();
+      SortedMap<Integer, String> paragraphMap = new TreeMap<Integer, String>();
+      ChildElements children = new ChildElements(parser);
+      while (children.next()) {
+        if (parser.getName().equals("paragraph")) {
+          String numAttr = parser.getAttributeValue(null, "num");
+          String paragraph = getTextContent(parser);
+          if (numAttr != null) {
+            int num = Integer.parseInt(numAttr);
+            paragraphMap.put(num, paragraph);
+          }
+        }
+      }
+      if (!children.hasChildNodes()) {
+        return null;
+      }
+      for (Entry<Integer, String> e: paragraphMap.entrySet()) {
+        paragraphs.add(e.getValue());
+      }
+      return paragraphs;
+    }
+
+    private static Audio parseAudio(XmlPullParser parser)
+        throws XmlPullParserException, IOException {
+      String id = null, duration = null;
+      String primary = parser.getAttributeValue(null, "type");
+      List<Audio.Format> formats = new ArrayList<Audio.Format>();
+      ChildElements children = new ChildElements(parser);
+      while (children.next()) {
+        String nodeName = parser.getName();
+        if (nodeName.equals("duration")) {
+          duration = getTextContent(parser);
+        } else if (nodeName.equals("format")) {
+          formats.add(parseFormat(parser));
+        }
+      }
+      if (!children.hasChildNodes()) {
+        return null;
+      }
+      return new Audio(id, primary, duration, formats);
+    }
+
+    private static Audio.Format parseFormat(XmlPullParser parser)
+        throws XmlPullParserException, IOException {
+      String mp3 = null, wm = null, rm = null;
+      ChildElements children = new ChildElements(parser);
+      while (children.next()) {
+        String nodeName = parser.getName();
+        if (nodeName.equals("mp3")) {
+          mp3 = getTextContent(parser);
+        } else if (nodeName.equals("wm")) {
+          wm = getTextContent(parser);
+        } else if (nodeName.equals("rm")) {
+          rm = getTextContent(parser);
+        }
+      }
+      return new Audio.Format(mp3, wm, rm);
+    }
+
+    /**
+     * Downloads and parses a story list, building stories as the response
+     * streams in.
+     *
+     * @param url The API query URL
+     * @return The stories, or null if the download or parse failed
+     */
+    public static List<Story> downloadStories(String url) {
+      return new Client(url).pull(new Client.PullHandler<List<Story>>() {
+        @Override
+        public List<Story> parse(XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+          return parseStories(parser);
+        }
+      });
+    }
+
+    /**
+     * Downloads and parses a story list, handing each story to the listener
+     * as soon as it has been read off the network.
+     *
+     * @param url The API query URL
+     * @param listener The listener to receive the stories
+     * @return The number of stories delivered, or -1 if the download or parse
+     *         failed. Stories delivered before a failure are not retracted.
+     */
+    public static int downloadStories(String url,
+        final StoryListener listener) {
+      Integer count = new Client(url).pull(new Client.PullHandler<Integer>() {
+        @Override
+        public Integer parse(XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+          return parseStories(parser, listener);
+        }
+      });
+      return count == null ? -1 : count;
+    }
+
     public static Story downloadStory(String storyId) {
       Log.d(LOG_TAG, "downloading story: " + storyId);
       Map<String, String> params = new HashMap<String, String>();
@@ -772,26 +1105,11 @@ public class Story extends ApiElement {
       String url =
           ApiConstants.instance().createUrl(ApiConstants.STORY_PATH, params);
 
-      Node stories = null;
-      try {
-        stories = new Client(url).execute();
-      } catch (ClientProtocolException e) {
-        Log.e(LOG_TAG, "", e);
-      } catch (IOException e) {
-        Log.e(LOG_TAG, "", e);
-      } catch (SAXException e) {
-        Log.e(LOG_TAG, "", e);
-      } catch (ParserConfigurationException e) {
-        Log.e(LOG_TAG, "", e);
-      }
-
-      if (stories == null) {
+      List<Story> result = downloadStories(url);
+      if (result == null) {
         return null;
       }
-      Log.d(LOG_TAG, "node " + stories.getNodeName() + " "
-          + stories.getChildNodes().getLength());
-      List<Story> result = parseStories(stories);
       return result.size() > 0 ? result.get(0) : null;
     }
   }
-}
\ No newline at end of file
+}